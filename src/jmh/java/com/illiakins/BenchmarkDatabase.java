@@ -0,0 +1,48 @@
+package com.illiakins;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory H2 database in MySQL mode shared by the benchmarks, registered as the "bench" data source.
+ */
+final class BenchmarkDatabase {
+    static final String NAME = "bench";
+    static final int ROWS = 10_000;
+    static final int MAX_WIDTH = 32;
+
+    private BenchmarkDatabase() {
+    }
+
+    static synchronized void start() throws SQLException {
+        if (DB.getDataSource(NAME) != null) {
+            return;
+        }
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        config.setUsername("sa");
+        config.setPassword("");
+        config.setMinimumIdle(4);
+        config.setMaximumPoolSize(4);
+        DB.registerDataSource(NAME, config);
+
+        DB.executeUpdate(NAME, "CREATE TABLE bench_row (id INT PRIMARY KEY, name VARCHAR(64), amount DOUBLE, "
+                + "quantity BIGINT, active BOOLEAN, created_on DATE, created_at TIMESTAMP)");
+        List<List<Object>> rows = new ArrayList<>(ROWS);
+        for (int id = 1; id <= ROWS; id++) {
+            rows.add(DB.varargsToList(id, "name-" + id, id * 1.25, id * 1_000L, id % 2 == 0,
+                    java.sql.Date.valueOf("2017-03-24"), java.sql.Timestamp.valueOf("2017-03-24 10:19:03.0")));
+        }
+        DB.executeUpdateBatch("INSERT INTO bench_row (id, name, amount, quantity, active, created_on, created_at) "
+                + "VALUES ", rows, NAME);
+
+        StringBuilder columns = new StringBuilder("CREATE TABLE bench_insert (id BIGINT AUTO_INCREMENT PRIMARY KEY");
+        for (int i = 1; i <= MAX_WIDTH; i++) {
+            columns.append(", c").append(i).append(" INT");
+        }
+        DB.executeUpdate(NAME, columns.append(')').toString());
+    }
+}
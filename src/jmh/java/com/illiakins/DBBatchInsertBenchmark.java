@@ -0,0 +1,68 @@
+package com.illiakins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-row executeUpdateBatch() by number of rows and columns per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBBatchInsertBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int rows;
+
+    @Param({"2", "8", "32"})
+    public int width;
+
+    private String sqlQuery;
+    private List<List<Object>> paramList;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkDatabase.start();
+        StringBuilder builder = new StringBuilder("INSERT INTO bench_insert (");
+        for (int i = 1; i <= width; i++) {
+            builder.append(i == 1 ? "c" : ", c").append(i);
+        }
+        sqlQuery = builder.append(") VALUES ").toString();
+        paramList = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++) {
+            List<Object> values = new ArrayList<>(width);
+            for (int i = 0; i < width; i++) {
+                values.add(row * width + i);
+            }
+            paramList.add(values);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws SQLException {
+        DB.executeUpdate(BenchmarkDatabase.NAME, "TRUNCATE TABLE bench_insert");
+    }
+
+    @Benchmark
+    public HashMap<String, Integer> executeUpdateBatch() throws SQLException {
+        return DB.executeUpdateBatch(sqlQuery, paramList, BenchmarkDatabase.NAME);
+    }
+}
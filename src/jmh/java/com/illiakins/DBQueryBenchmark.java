@@ -0,0 +1,74 @@
+package com.illiakins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * executeQuery() and parameter binding, one row and the whole 10k-row table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBQueryBenchmark {
+    private static final String ONE_ROW = "SELECT * FROM bench_row WHERE id = ?";
+    private static final String ALL_ROWS = "SELECT * FROM bench_row";
+    private static final String FILTERED = "SELECT * FROM bench_row WHERE id = ? AND name = ? AND active = ?";
+
+    private static final DBPreparedQuery ONE_ROW_HANDLE = DBPreparedQuery.of(ONE_ROW, Types.INTEGER);
+
+    private int id;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkDatabase.start();
+    }
+
+    @Benchmark
+    public List<HashMap<String, Object>> singleRow() throws SQLException {
+        id = id % BenchmarkDatabase.ROWS + 1;
+        return DB.executeQuery(BenchmarkDatabase.NAME, ONE_ROW, DB.varargsToList(id));
+    }
+
+    @Benchmark
+    public DBResult singleRowPrepared() throws SQLException {
+        int rowId = id = id % BenchmarkDatabase.ROWS + 1;
+        return ONE_ROW_HANDLE.executeQuery(BenchmarkDatabase.NAME, statement -> statement.setInt(1, rowId));
+    }
+
+    @Benchmark
+    public List<HashMap<String, Object>> tenThousandRows() throws SQLException {
+        return DB.executeQuery(BenchmarkDatabase.NAME, ALL_ROWS);
+    }
+
+    @Benchmark
+    public DBResult tenThousandRowsCompact() throws SQLException {
+        return DB.executeQueryRows(BenchmarkDatabase.NAME, ALL_ROWS);
+    }
+
+    @Benchmark
+    public List<Object> varargsToList() {
+        return DB.varargsToList(42, "name-42", true);
+    }
+
+    @Benchmark
+    public List<HashMap<String, Object>> varargsBinding() throws SQLException {
+        return DB.executeQuery(BenchmarkDatabase.NAME, FILTERED, DB.varargsToList(42, "name-42", true));
+    }
+}
@@ -0,0 +1,129 @@
+package com.illiakins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed getters of DBResultParser on rows holding driver types ("native") or their string form ("string"),
+ * and getCount()/getFirstRecord() on a 10k-row result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBResultParserBenchmark {
+    @Param({"native", "string"})
+    public String values;
+
+    private DBResultParser parser;
+    private List<HashMap<String, Object>> largeResult;
+    private List<HashMap<String, Object>> countResult;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkDatabase.start();
+        HashMap<String, Object> row = new HashMap<>();
+        if ("native".equals(values)) {
+            row.put("id", 42);
+            row.put("quantity", 42_000L);
+            row.put("amount", 52.5);
+            row.put("name", "name-42");
+            row.put("active", true);
+            row.put("start_time", java.sql.Time.valueOf("10:19:03"));
+            row.put("created_on", java.sql.Date.valueOf("2017-03-24"));
+            row.put("created_at", java.sql.Timestamp.valueOf("2017-03-24 10:19:03.0"));
+        } else {
+            row.put("id", "42");
+            row.put("quantity", "42000");
+            row.put("amount", "52.5");
+            row.put("name", "name-42");
+            row.put("active", "1");
+            row.put("start_time", "10:19:03");
+            row.put("created_on", "2017-03-24");
+            row.put("created_at", "2017-03-24 10:19:03.0");
+        }
+        parser = new DBResultParser(row);
+        largeResult = DB.executeQuery(BenchmarkDatabase.NAME, "SELECT * FROM bench_row");
+        countResult = DB.executeQuery(BenchmarkDatabase.NAME,
+                "SELECT MAX(id) AS max_id, MIN(id) AS min_id, COUNT(*) AS row_count FROM bench_row");
+    }
+
+    @Benchmark
+    public Integer getInt() throws SQLException {
+        return parser.getInt("id");
+    }
+
+    @Benchmark
+    public Long getLong() throws SQLException {
+        return parser.getLong("quantity");
+    }
+
+    @Benchmark
+    public Double getDouble() throws SQLException {
+        return parser.getDouble("amount");
+    }
+
+    @Benchmark
+    public String getString() throws SQLException {
+        return parser.getString("name");
+    }
+
+    @Benchmark
+    public Boolean getBool() throws SQLException {
+        return parser.getBool("active");
+    }
+
+    @Benchmark
+    public LocalTime getLocalTime() throws SQLException {
+        return parser.getLocalTime("start_time");
+    }
+
+    @Benchmark
+    public LocalDate getLocalDate() throws SQLException {
+        return parser.getLocalDate("created_on");
+    }
+
+    @Benchmark
+    public LocalDateTime getLocalDateTime() throws SQLException {
+        return parser.getLocalDateTime("created_at");
+    }
+
+    @Benchmark
+    public Integer getCount() throws SQLException {
+        return DBResultParser.getCount(countResult);
+    }
+
+    @Benchmark
+    public Integer getCountByColumn() throws SQLException {
+        return DBResultParser.getCount(countResult, "row_count");
+    }
+
+    @Benchmark
+    public DBResultParser getFirstRecord() {
+        return DBResultParser.getFirstRecord(largeResult);
+    }
+
+    @Benchmark
+    public List<DBResultParser> getResultSet() {
+        return DBResultParser.getResultSet(largeResult);
+    }
+}
@@ -3,6 +3,7 @@ package com.illiakins;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import com.zaxxer.hikari.pool.HikariPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,63 +15,135 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 public class DB {
     private static final Logger LOG = LoggerFactory.getLogger(DB.class);
-    private static Map<String, DataSource> dataSourceHashMap = new HashMap<>();
-    private static Map<String, HikariConfig> configMap = new HashMap<>();
+    /**
+     * Fetch size which makes MySQL Connector/J stream the result row by row.
+     */
+    public static final int STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+    private static final long MIN_REBUILD_INTERVAL_MILLIS = 5_000;
+    private static final long MAX_REBUILD_BACKOFF_MILLIS = 60_000;
+    private static final long RETIRE_TIMEOUT_MILLIS = 30_000;
+    private static Map<String, DataSource> dataSourceHashMap = new ConcurrentHashMap<>();
+    private static Map<String, HikariConfig> configMap = new ConcurrentHashMap<>();
+    /** pools being created by registerDataSource(), other callers for the same name wait for them */
+    private static final Map<String, CompletableFuture<DataSource>> pendingDataSources = new ConcurrentHashMap<>();
+    private static final Map<String, PoolState> poolStates = new ConcurrentHashMap<>();
+    private static volatile DBAsync async;
+    private static volatile DBQueryCache queryCache;
+    private static volatile DBQueryCoalescer queryCoalescer;
+    private static volatile DBMetrics metrics;
+    private static final Map<Connection, DBStatementCache> statementCaches = new ConcurrentHashMap<>();
+    /**
+     * Open transaction connections with the write statements run on them, replayed against the query cache after
+     * the commit.
+     */
+    private static final Map<Connection, Set<String>> transactionWrites = new ConcurrentHashMap<>();
 
     public DB(String jdbcUrl, String userName, String password, int minimumIdle, int maxPoolSize,
             long leakDetectionThreshold, long connTimeout, long idleTimeout, long maxLifetime)
             throws HikariPool.PoolInitializationException {
-        if (dataSourceHashMap.get("default") == null) {
-            LOG.debug("CREATE NEW CONNECTION POOL");
-            HikariConfig config = new HikariConfig();
-            config.setJdbcUrl(jdbcUrl);
-            config.setUsername(userName);
-            config.setPassword(password);
-            config.setMinimumIdle(minimumIdle);
-            config.setMaximumPoolSize(maxPoolSize);
-            config.setAutoCommit(true);
-            config.addDataSourceProperty("cachePrepStmts", "true");
-            config.addDataSourceProperty("prepStmtCacheSize", "250");
-            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-            config.setLeakDetectionThreshold(leakDetectionThreshold); // example (2500) 2.5 seconds
-            config.setConnectionTimeout(connTimeout); // example default(5000) 5 seconds
-            config.setIdleTimeout(idleTimeout); // example (900_000) 15 minutes
-            config.setMaxLifetime(maxLifetime); // example (28_440_000) 7.9 hours
-            configMap.put("default", config);
-            dataSourceHashMap.put("default", new HikariDataSource(config));
-        }
+        this("default", jdbcUrl, userName, password, minimumIdle, maxPoolSize, leakDetectionThreshold, connTimeout,
+                idleTimeout, maxLifetime);
     }
 
     public DB(String dataSourceName, String jdbcUrl, String userName, String password, int minimumIdle, int maxPoolSize,
             long leakDetectionThreshold, long connTimeout, long idleTimeout, long maxLifetime)
             throws HikariPool.PoolInitializationException {
         if (dataSourceHashMap.get(dataSourceName) == null) {
-            LOG.debug("CREATE NEW CONNECTION POOL ({})", dataSourceName);
-            HikariConfig config = new HikariConfig();
-            config.setJdbcUrl(jdbcUrl);
-            config.setUsername(userName);
-            config.setPassword(password);
-            config.setMinimumIdle(minimumIdle);
-            config.setMaximumPoolSize(maxPoolSize);
-            config.setAutoCommit(true);
-            config.addDataSourceProperty("cachePrepStmts", "true");
-            config.addDataSourceProperty("prepStmtCacheSize", "250");
-            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-            config.setLeakDetectionThreshold(leakDetectionThreshold); // example (2500) 2.5 seconds
-            config.setConnectionTimeout(connTimeout); // example default(5000) 5 seconds
-            config.setIdleTimeout(idleTimeout); // example (900_000) 15 minutes
-            config.setMaxLifetime(maxLifetime); // example (28_440_000) 7.9 hours
-            configMap.put(dataSourceName, config);
-            dataSourceHashMap.put(dataSourceName, new HikariDataSource(config));
+            registerDataSource(dataSourceName, newConfig(jdbcUrl, userName, password, minimumIdle, maxPoolSize,
+                    leakDetectionThreshold, connTimeout, idleTimeout, maxLifetime));
+        }
+    }
+
+    /**
+     * Pool configuration with the settings every DB pool uses.
+     */
+    static HikariConfig newConfig(String jdbcUrl, String userName, String password, int minimumIdle, int maxPoolSize,
+            long leakDetectionThreshold, long connTimeout, long idleTimeout, long maxLifetime) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(jdbcUrl);
+        config.setUsername(userName);
+        config.setPassword(password);
+        config.setMinimumIdle(minimumIdle);
+        config.setMaximumPoolSize(maxPoolSize);
+        config.setAutoCommit(true);
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.setLeakDetectionThreshold(leakDetectionThreshold); // example (2500) 2.5 seconds
+        config.setConnectionTimeout(connTimeout); // example default(5000) 5 seconds
+        config.setIdleTimeout(idleTimeout); // example (900_000) 15 minutes
+        config.setMaxLifetime(maxLifetime); // example (28_440_000) 7.9 hours
+        return config;
+    }
+
+    /**
+     * Creates the connection pool for the name unless one is already registered.
+     * Concurrent calls for the same name create only one pool, the others wait for it. Pools of different names
+     * are created in parallel, the pool is built outside of the maps and published once it started.
+     * @return the registered pool
+     */
+    public static DataSource registerDataSource(String dataSourceName, HikariConfig config)
+            throws HikariPool.PoolInitializationException {
+        DataSource registered = dataSourceHashMap.get(dataSourceName);
+        if (registered != null) {
+            return registered;
+        }
+        CompletableFuture<DataSource> created = new CompletableFuture<>();
+        CompletableFuture<DataSource> pending = pendingDataSources.putIfAbsent(dataSourceName, created);
+        if (pending != null) {
+            return awaitDataSource(dataSourceName, pending);
+        }
+        try {
+            // registered between the lookup and claiming the name
+            registered = dataSourceHashMap.get(dataSourceName);
+            if (registered == null) {
+                LOG.debug("CREATE NEW CONNECTION POOL ({})", dataSourceName);
+                DBPoolSettings.applyBound(dataSourceName, config);
+                registered = new HikariDataSource(config);
+                configMap.put(dataSourceName, config);
+                dataSourceHashMap.put(dataSourceName, registered);
+            }
+            created.complete(registered);
+            return registered;
+        } catch (RuntimeException | Error e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingDataSources.remove(dataSourceName, created);
+        }
+    }
+
+    private static DataSource awaitDataSource(String dataSourceName, CompletableFuture<DataSource> pending) {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HikariPool.PoolInitializationException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof HikariPool.PoolInitializationException) {
+                throw (HikariPool.PoolInitializationException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            LOG.debug("Pool `{}` created by another thread failed", dataSourceName, cause);
+            throw new HikariPool.PoolInitializationException(cause);
         }
     }
 
@@ -90,28 +163,202 @@ public class DB {
         return configMap;
     }
 
-    private static DataSource constructDataSource(String dataSourceName) throws SQLException {
-        DataSource dataSource;
-        if (!getConfigMap().containsKey(dataSourceName)) {
-            throw new SQLException("No configuration found for the name: {}", dataSourceName);
+    /**
+     * Returns the asynchronous facade, see {@link DBAsync}. A default one with a platform thread pool
+     * is created on first use unless another one was set with setAsync().
+     */
+    public static DBAsync async() {
+        DBAsync instance = async;
+        if (instance == null) {
+            synchronized (DB.class) {
+                if (async == null) {
+                    async = new DBAsync();
+                }
+                instance = async;
+            }
         }
-        dataSource = new HikariDataSource(getConfigMap().get(dataSourceName));
-        getDataSourceHashMap().put(dataSourceName, dataSource);
-        return dataSource;
+        return instance;
     }
 
-    private static Connection getConnection(String dataSourceName) throws SQLException {
+    public static void setAsync(DBAsync dbAsync) {
+        async = dbAsync;
+    }
+
+    /**
+     * Installs the result cache used by executeCachedQuery(), NULL switches caching off.
+     */
+    public static void setQueryCache(DBQueryCache cache) {
+        queryCache = cache;
+    }
+
+    public static DBQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Installs the single-flight layer for reads by data source name, see {@link DBQueryCoalescer}.
+     * NULL, the default, switches coalescing off.
+     */
+    public static void setQueryCoalescer(DBQueryCoalescer coalescer) {
+        queryCoalescer = coalescer;
+    }
+
+    public static DBQueryCoalescer getQueryCoalescer() {
+        return queryCoalescer;
+    }
+
+    /**
+     * Installs the statement instrumentation, see {@link DBMetrics}. NULL switches it off.
+     */
+    public static void setMetrics(DBMetrics dbMetrics) {
+        metrics = dbMetrics;
+    }
+
+    public static DBMetrics getMetrics() {
+        return metrics;
+    }
+
+    static void invalidateCache(String sqlQuery) {
+        invalidateCache(null, sqlQuery);
+    }
+
+    /**
+     * Invalidates the query cache for a write which ran on the connection. A write of a transaction invalidates again
+     * when releaseConnectionForTransaction() commits, other threads may have cached the old rows until then.
+     */
+    static void invalidateCache(Connection connection, String sqlQuery) {
+        DBQueryCache cache = queryCache;
+        if (cache != null) {
+            cache.onUpdate(sqlQuery);
+            Set<String> writes = connection != null ? transactionWrites.get(connection) : null;
+            if (writes != null) {
+                writes.add(sqlQuery);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the pool of the data source after a checkout failed to open a connection, not when the pool was
+     * just busy. Only one thread rebuilds a pool at a time, the others wait and use the pool it built.
+     * Rebuilds are spaced by at least MIN_REBUILD_INTERVAL_MILLIS and failed rebuilds back off exponentially
+     * up to MAX_REBUILD_BACKOFF_MILLIS, so an outage does not turn into a storm of new pools.
+     * While rebuilding is suppressed the current pool is returned.
+     * @param failed the pool the caller failed to get a connection from, NULL if there was none
+     */
+    private static DataSource constructDataSource(String dataSourceName, DataSource failed) throws SQLException {
+        HikariConfig config = getConfigMap().get(dataSourceName);
+        if (config == null) {
+            throw new SQLException("No configuration found for the name: " + dataSourceName);
+        }
+        PoolState state = poolStates.computeIfAbsent(dataSourceName, name -> new PoolState());
+        synchronized (state) {
+            DataSource current = getDataSourceHashMap().get(dataSourceName);
+            if (current != null && current != failed) {
+                // another thread has already rebuilt the pool
+                return current;
+            }
+            long now = System.currentTimeMillis();
+            if (now < state.nextRebuildAt) {
+                if (current != null) {
+                    return current;
+                }
+                throw new SQLException("Connection pool for `" + dataSourceName + "` is unavailable, next rebuild in "
+                        + (state.nextRebuildAt - now) + " ms");
+            }
+            HikariDataSource dataSource;
+            try {
+                dataSource = new HikariDataSource(config);
+            } catch (RuntimeException e) {
+                state.failures++;
+                long backoff = Math.min(MAX_REBUILD_BACKOFF_MILLIS,
+                        MIN_REBUILD_INTERVAL_MILLIS << Math.min(state.failures - 1, 16));
+                state.nextRebuildAt = now + backoff;
+                LOG.error("Unable to rebuild connection pool for `{}`, next attempt in {} ms", dataSourceName, backoff);
+                throw new SQLException("Unable to create connection pool for `" + dataSourceName + "`", e);
+            }
+            state.failures = 0;
+            state.nextRebuildAt = now + MIN_REBUILD_INTERVAL_MILLIS;
+            getDataSourceHashMap().put(dataSourceName, dataSource);
+            closeInBackground(current);
+            return dataSource;
+        }
+    }
+
+    /**
+     * Retires a replaced pool without breaking the queries still running on it: idle connections are closed right
+     * away, busy ones when they are returned, and the pool is closed once none is active or after
+     * RETIRE_TIMEOUT_MILLIS. HikariDataSource.close() alone would abort the active connections.
+     */
+    private static void closeInBackground(DataSource dataSource) {
+        if (!(dataSource instanceof HikariDataSource)) {
+            return;
+        }
+        HikariDataSource pool = (HikariDataSource) dataSource;
+        Thread closer = new Thread(() -> {
+            try {
+                HikariPoolMXBean poolMXBean = DBPoolSizer.poolMXBean(pool);
+                if (poolMXBean != null) {
+                    poolMXBean.softEvictConnections();
+                    long deadline = System.currentTimeMillis() + RETIRE_TIMEOUT_MILLIS;
+                    while (poolMXBean.getActiveConnections() > 0 && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(100);
+                    }
+                    if (poolMXBean.getActiveConnections() > 0) {
+                        LOG.warn("Closing retired pool {} with {} connections still active", pool.getPoolName(),
+                                poolMXBean.getActiveConnections());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to drain retired pool {}", pool.getPoolName(), e);
+            } finally {
+                pool.close();
+            }
+        }, "db-pool-closer");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * Hikari reports a checkout timeout of a busy pool without a cause. The cause is set only when the pool
+     * failed to open connections, which is what a rebuild can fix.
+     */
+    private static boolean isBusyPoolTimeout(SQLException e) {
+        return e instanceof SQLTransientConnectionException && e.getCause() == null;
+    }
+
+    static Connection getConnection(String dataSourceName) throws SQLException {
+        DBMetrics dbMetrics = metrics;
+        if (dbMetrics == null) {
+            return checkoutConnection(dataSourceName);
+        }
+        long start = System.nanoTime();
+        Connection conn = null;
+        try {
+            conn = checkoutConnection(dataSourceName);
+            return conn;
+        } finally {
+            dbMetrics.recordCheckout(dataSourceName, conn, System.nanoTime() - start, conn == null);
+        }
+    }
+
+    private static Connection checkoutConnection(String dataSourceName) throws SQLException {
         Connection conn;
         DataSource dataSource = getDataSource(dataSourceName);
         if (dataSource == null) {
-            dataSource = constructDataSource(dataSourceName);
+            dataSource = constructDataSource(dataSourceName, null);
         }
         try {
             conn = dataSource.getConnection();
         } catch (SQLException sqlEx) {
+            if (isBusyPoolTimeout(sqlEx)) {
+                // every connection is in use, a new pool would not help and retiring this one would hurt
+                throw sqlEx;
+            }
             LOG.error("Unable to get connection from connection pool...", sqlEx);
-            //last attempt to manually establish a connection
-            dataSource = constructDataSource(dataSourceName);
+            //last attempt, on a rebuilt pool if a rebuild is allowed now
+            dataSource = constructDataSource(dataSourceName, dataSource);
             try {
                 conn = dataSource.getConnection();
             } catch (SQLException e) {
@@ -136,18 +383,36 @@ public class DB {
         } catch (SQLException e) {
             throw new SQLException("Error getting connection for transaction.", e);
         }
+        transactionWrites.put(connection, ConcurrentHashMap.newKeySet());
         return connection;
     }
 
+    /**
+     * Prepared statements of the {@link DBPreparedQuery} handles run on a transaction connection,
+     * NULL for connections which were not obtained from getConnectionForTransaction().
+     * Created on first use, transactions which run no prepared handle do not pay for it.
+     */
+    static DBStatementCache getStatementCache(Connection connection) {
+        if (!transactionWrites.containsKey(connection)) {
+            return null;
+        }
+        return statementCaches.computeIfAbsent(connection, c -> new DBStatementCache());
+    }
+
     public static boolean releaseConnectionForTransaction(Connection connection) throws SQLException {
         return releaseConnectionForTransaction(connection, true);
     }
 
     public static boolean releaseConnectionForTransaction(Connection connection, Boolean makeCommit)
             throws SQLException {
+        Set<String> writes = transactionWrites.remove(connection);
         try {
             if (makeCommit) {
                 connection.commit();
+                DBQueryCache cache = queryCache;
+                if (cache != null && writes != null) {
+                    writes.forEach(cache::onUpdate);
+                }
                 return true;
             } else {
                 connection.rollback();
@@ -182,6 +447,10 @@ public class DB {
 
     public static List<HashMap<String, Object>> executeQuery(String dataSourceName, String sqlQuery)
             throws SQLException {
+        DBQueryCoalescer coalescer = queryCoalescer;
+        if (coalescer != null) {
+            return coalescer.execute(dataSourceName, sqlQuery, Collections.emptyList()).toHashMapList();
+        }
         List<HashMap<String, Object>> result;
         Connection connection = getConnection(dataSourceName);
         result = executeQuery(connection, sqlQuery);
@@ -197,10 +466,16 @@ public class DB {
         Statement statement = null;
         ResultSet resultSet = null;
         List result;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
         try {
             statement = connection.createStatement();
             resultSet = statement.executeQuery(sqlQuery);
+            timer.executed();
             result = resultSetToArrayList(resultSet);
+            timer.finish(result.size());
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
         } finally {
             close(null, statement, resultSet);
         }
@@ -214,6 +489,10 @@ public class DB {
 
     public static List<HashMap<String, Object>> executeQuery(String dataSourceName, String sqlQuery,
             List<Object> params) throws SQLException {
+        DBQueryCoalescer coalescer = queryCoalescer;
+        if (coalescer != null) {
+            return coalescer.execute(dataSourceName, sqlQuery, params).toHashMapList();
+        }
         List<HashMap<String, Object>> result;
         Connection connection = getConnection(dataSourceName);
         result = executeQuery(connection, sqlQuery, params);
@@ -231,6 +510,7 @@ public class DB {
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         List result;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
         try {
             statement = connection.prepareStatement(sqlQuery);
             int parameterIndex = 1;
@@ -238,7 +518,12 @@ public class DB {
                 statement.setObject(parameterIndex++, param);
             }
             resultSet = statement.executeQuery();
+            timer.executed();
             result = resultSetToArrayList(resultSet);
+            timer.finish(result.size());
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
         } finally {
             close(closeConnection ? connection : null, statement, resultSet);
         }
@@ -264,6 +549,334 @@ public class DB {
         return executeQuery(connection, sqlQuery, varargsToList(parameters));
     }
 
+    /**
+     * Same as executeQuery() but returns a compact result: column labels are resolved once per query
+     * and every row keeps its values in an array.
+     */
+    public static DBResult executeQueryRows(String dataSourceName, String sqlQuery, List<Object> params)
+            throws SQLException {
+        DBQueryCoalescer coalescer = queryCoalescer;
+        if (coalescer != null) {
+            return coalescer.execute(dataSourceName, sqlQuery, params);
+        }
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return executeQueryRows(connection, sqlQuery, params);
+        } finally {
+            close(connection, null, null);
+        }
+    }
+
+    public static DBResult executeQueryRows(Connection connection, String sqlQuery, List<Object> params)
+            throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery);
+            setParameters(statement, params);
+            resultSet = statement.executeQuery();
+            timer.executed();
+            DBResult result = DBResult.of(resultSet);
+            timer.finish(result.size());
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            close(null, statement, resultSet);
+        }
+    }
+
+    public static DBResult executeQueryRows(String dataSourceName, String sqlQuery, Object... parameters)
+            throws SQLException {
+        return executeQueryRows(dataSourceName, sqlQuery, varargsToList(parameters));
+    }
+
+    public static DBResult executeQueryRows(String sqlQuery, List<Object> params) throws SQLException {
+        return executeQueryRows("default", sqlQuery, params);
+    }
+
+    public static DBResult executeQueryRows(String sqlQuery, Object... parameters) throws SQLException {
+        return executeQueryRows("default", sqlQuery, parameters);
+    }
+
+    /**
+     * Same as executeQueryRows() but served from the query cache when one is installed with setQueryCache().
+     * @param ttlMillis how long the cached result stays valid
+     * @param tags tables the result depends on, empty to take them from the query
+     */
+    public static DBResult executeCachedQuery(String dataSourceName, String sqlQuery, List<Object> params,
+            long ttlMillis, String... tags) throws SQLException {
+        DBQueryCache cache = queryCache;
+        if (cache == null) {
+            return executeQueryRows(dataSourceName, sqlQuery, params);
+        }
+        return cache.get(dataSourceName, sqlQuery, params, ttlMillis, tags);
+    }
+
+    public static DBResult executeCachedQuery(String sqlQuery, List<Object> params, long ttlMillis)
+            throws SQLException {
+        return executeCachedQuery("default", sqlQuery, params, ttlMillis);
+    }
+
+    /**
+     * Reads the result column by column into primitive arrays, numeric values are never boxed.
+     * Use for large numeric results, see {@link DBColumnarResult}.
+     */
+    public static DBColumnarResult executeQueryColumnar(String dataSourceName, String sqlQuery, List<Object> params)
+            throws SQLException {
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return executeQueryColumnar(connection, sqlQuery, params);
+        } finally {
+            close(connection, null, null);
+        }
+    }
+
+    public static DBColumnarResult executeQueryColumnar(Connection connection, String sqlQuery, List<Object> params)
+            throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery);
+            setParameters(statement, params);
+            resultSet = statement.executeQuery();
+            timer.executed();
+            DBColumnarResult result = DBColumnarResult.of(resultSet);
+            timer.finish(result.getRowCount());
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            close(null, statement, resultSet);
+        }
+    }
+
+    public static DBColumnarResult executeQueryColumnar(String dataSourceName, String sqlQuery, Object... parameters)
+            throws SQLException {
+        return executeQueryColumnar(dataSourceName, sqlQuery, varargsToList(parameters));
+    }
+
+    public static DBColumnarResult executeQueryColumnar(String sqlQuery, List<Object> params) throws SQLException {
+        return executeQueryColumnar("default", sqlQuery, params);
+    }
+
+    /**
+     * Keeps at most maxRowsInMemory rows on the heap and spills the rest to a memory-mapped temporary file,
+     * see {@link DBSpillResult}. The result must be closed. Uses MySQL row-by-row streaming, so the driver
+     * does not buffer the whole result either.
+     */
+    public static DBSpillResult executeQuerySpilling(String dataSourceName, String sqlQuery, List<Object> params,
+            int maxRowsInMemory) throws SQLException {
+        return executeQuerySpilling(dataSourceName, sqlQuery, params, maxRowsInMemory, STREAMING_FETCH_SIZE);
+    }
+
+    /**
+     * @param fetchSize rows fetched per round trip, 0 to leave the driver default
+     */
+    public static DBSpillResult executeQuerySpilling(String dataSourceName, String sqlQuery, List<Object> params,
+            int maxRowsInMemory, int fetchSize) throws SQLException {
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return executeQuerySpilling(connection, sqlQuery, params, maxRowsInMemory, fetchSize);
+        } finally {
+            close(connection, null, null);
+        }
+    }
+
+    public static DBSpillResult executeQuerySpilling(Connection connection, String sqlQuery, List<Object> params,
+            int maxRowsInMemory, int fetchSize) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (fetchSize != 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            setParameters(statement, params);
+            resultSet = statement.executeQuery();
+            timer.executed();
+            DBSpillResult result = DBSpillResult.of(resultSet, maxRowsInMemory);
+            timer.finish(result.size());
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            close(null, statement, resultSet);
+        }
+    }
+
+    public static DBSpillResult executeQuerySpilling(String sqlQuery, List<Object> params, int maxRowsInMemory)
+            throws SQLException {
+        return executeQuerySpilling("default", sqlQuery, params, maxRowsInMemory);
+    }
+
+    /**
+     * Maps every row straight from the ResultSet to an instance of the class, see {@link DBClassMapper}.
+     */
+    public static <T> List<T> query(String dataSourceName, String sqlQuery, List<Object> params, Class<T> type)
+            throws SQLException {
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return query(connection, sqlQuery, params, type);
+        } finally {
+            close(connection, null, null);
+        }
+    }
+
+    public static <T> List<T> query(Connection connection, String sqlQuery, List<Object> params, Class<T> type)
+            throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery);
+            setParameters(statement, params);
+            resultSet = statement.executeQuery();
+            timer.executed();
+            List<T> result = mapRows(resultSet, DBClassMapper.forResultSet(type, resultSet.getMetaData()));
+            timer.finish(result.size());
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            close(null, statement, resultSet);
+        }
+    }
+
+    public static <T> List<T> query(String sqlQuery, List<Object> params, Class<T> type) throws SQLException {
+        return query("default", sqlQuery, params, type);
+    }
+
+    public static <T> List<T> query(String dataSourceName, String sqlQuery, List<Object> params,
+            DBRowMapper<T> rowMapper) throws SQLException {
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return query(connection, sqlQuery, params, rowMapper);
+        } finally {
+            close(connection, null, null);
+        }
+    }
+
+    public static <T> List<T> query(Connection connection, String sqlQuery, List<Object> params,
+            DBRowMapper<T> rowMapper) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery);
+            setParameters(statement, params);
+            resultSet = statement.executeQuery();
+            timer.executed();
+            List<T> result = mapRows(resultSet, rowMapper);
+            timer.finish(result.size());
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            close(null, statement, resultSet);
+        }
+    }
+
+    public static <T> List<T> query(String sqlQuery, List<Object> params, DBRowMapper<T> rowMapper)
+            throws SQLException {
+        return query("default", sqlQuery, params, rowMapper);
+    }
+
+    private static <T> List<T> mapRows(ResultSet resultSet, DBRowMapper<T> rowMapper) throws SQLException {
+        List<T> result = new ArrayList<>();
+        while (resultSet.next()) {
+            result.add(rowMapper.mapRow(resultSet));
+        }
+        return result;
+    }
+
+    /**
+     * Opens a forward-only cursor which reads rows one at a time instead of loading the whole result.
+     * The connection is returned to the pool when the cursor is closed or read to the end.
+     * @param fetchSize rows fetched per round trip, STREAMING_FETCH_SIZE for MySQL row-by-row streaming,
+     *                  0 to leave the driver default
+     */
+    public static DBCursor openCursor(String dataSourceName, String sqlQuery, int fetchSize, List<Object> params)
+            throws SQLException {
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return openCursor(connection, true, sqlQuery, fetchSize, params);
+        } catch (SQLException e) {
+            close(connection, null, null);
+            throw e;
+        }
+    }
+
+    public static DBCursor openCursor(String sqlQuery, int fetchSize, List<Object> params) throws SQLException {
+        return openCursor("default", sqlQuery, fetchSize, params);
+    }
+
+    /**
+     * Keeps the connection open.
+     * Closing the cursor releases only the statement, the connection stays with the caller.
+     */
+    public static DBCursor openCursor(Connection connection, String sqlQuery, int fetchSize, List<Object> params)
+            throws SQLException {
+        return openCursor(connection, false, sqlQuery, fetchSize, params);
+    }
+
+    private static DBCursor openCursor(Connection connection, boolean ownConnection, String sqlQuery, int fetchSize,
+            List<Object> params) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = connection.prepareStatement(sqlQuery, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (fetchSize != 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            setParameters(statement, params);
+            resultSet = statement.executeQuery();
+            return new DBCursor(ownConnection ? connection : null, statement, resultSet);
+        } catch (SQLException e) {
+            close(null, statement, resultSet);
+            throw e;
+        }
+    }
+
+    /**
+     * Passes every row of the result to the consumer without materialising the result.
+     * Uses MySQL row-by-row streaming, see {@link #streamQuery(String, String, List, int, DBRowConsumer)}.
+     */
+    public static void streamQuery(String dataSourceName, String sqlQuery, List<Object> params,
+            DBRowConsumer rowConsumer) throws SQLException {
+        streamQuery(dataSourceName, sqlQuery, params, STREAMING_FETCH_SIZE, rowConsumer);
+    }
+
+    public static void streamQuery(String dataSourceName, String sqlQuery, List<Object> params, int fetchSize,
+            DBRowConsumer rowConsumer) throws SQLException {
+        try (DBCursor cursor = openCursor(dataSourceName, sqlQuery, fetchSize, params)) {
+            Map<String, Object> row;
+            while ((row = cursor.fetch()) != null) {
+                rowConsumer.accept(row);
+            }
+        }
+    }
+
+    public static void streamQuery(String sqlQuery, List<Object> params, DBRowConsumer rowConsumer)
+            throws SQLException {
+        streamQuery("default", sqlQuery, params, rowConsumer);
+    }
+
+    private static void setParameters(PreparedStatement statement, List<Object> params) throws SQLException {
+        int parameterIndex = 1;
+        for (Object param : params) {
+            statement.setObject(parameterIndex++, param);
+        }
+    }
+
     /**
      * Keeps the connection open.
      * Use for controlling transactions.
@@ -279,6 +892,7 @@ public class DB {
         PreparedStatement statement = null;
         ResultSet resultSet = null;
         int generatedKey = 0;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
         try {
             statement = connection.prepareStatement(sqlQuery, Statement.RETURN_GENERATED_KEYS);
             int parameterIndex = 1;
@@ -286,6 +900,8 @@ public class DB {
                 statement.setObject(parameterIndex++, param);
             }
             int retval = statement.executeUpdate();
+            timer.executed();
+            invalidateCache(connection, sqlQuery);
             resultSet = statement.getGeneratedKeys();
             if (resultSet.next()) {
                 generatedKey = resultSet.getInt(1);
@@ -294,6 +910,10 @@ public class DB {
                 //If it was an update/delete statement return the # of row affected instead of the generated keys.
                 generatedKey = retval;
             }
+            timer.finish(retval);
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
         } finally {
             close(closeConnection ? connection : null, statement, resultSet);
         }
@@ -353,44 +973,16 @@ public class DB {
             connection = getConnection("default");
             closeConnection = true;
         }
-        PreparedStatement statement = null;
-        ResultSet resultSet = null;
         HashMap<String, Integer> result = new HashMap<>();
-
-        final StringBuilder builderPlaceholder = new StringBuilder("(");
-        for (int i = 0; i < paramList.get(0).size(); i++) {
-            if (i != 0) {
-                builderPlaceholder.append(",");
-            }
-            builderPlaceholder.append("?");
-        }
-        String insertPlaceholders = builderPlaceholder.append(")").toString();
-        final StringBuilder builder = new StringBuilder(sqlQuery);
-        for (int i = 0; i < paramList.size(); i++) {
-            if (i != 0) {
-                builder.append(",");
-            }
-            builder.append(insertPlaceholders);
-        }
-        if (!subQuery.equals("")) {
-            builder.append(" ").append(subQuery);
-        }
         try {
-            statement = connection.prepareStatement(builder.toString(), Statement.RETURN_GENERATED_KEYS);
-            int parameterIndex = 1;
-            for (List<Object> param : paramList) {
-                for (Object value : param) {
-                    statement.setObject(parameterIndex++, value);
-                }
-            }
-            statement.execute();
-            result.put("affected", statement.getUpdateCount());
-            resultSet = statement.getGeneratedKeys();
-            if (resultSet.next()) {
-                result.put("id", resultSet.getInt(1));
+            DBBatchResult batchResult =
+                    executeBulkInsert(connection, sqlQuery, subQuery, paramList, new DBBulkInsert());
+            result.put("affected", (int) batchResult.getAffected());
+            if (batchResult.getGeneratedKeyCount() > 0) {
+                result.put("id", (int) batchResult.getGeneratedKeys()[0]);
             }
         } finally {
-            close(closeConnection ? connection : null, statement, resultSet);
+            close(closeConnection ? connection : null, null, null);
         }
         return result;
     }
@@ -424,18 +1016,60 @@ public class DB {
         return executeUpdateBatch(sqlQuery, paramList, "default");
     }
 
+    /**
+     * Keeps the connection open.
+     * Inserts the rows in chunks, see {@link DBBulkInsert} for the chunking rules and options.
+     * @return affected rows per chunk and all generated keys
+     */
+    public static DBBatchResult executeBulkInsert(Connection connection, String sqlQuery, String subQuery,
+            List<List<Object>> paramList, DBBulkInsert options) throws SQLException {
+        DBMetrics.Timer timer = DBMetrics.Timer.start(metrics, connection, sqlQuery);
+        try {
+            DBBatchResult result = options.execute(connection, sqlQuery, subQuery, paramList);
+            timer.finish(paramList.size());
+            invalidateCache(connection, sqlQuery);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        }
+    }
+
+    public static DBBatchResult executeBulkInsert(String dataSourceName, String sqlQuery, String subQuery,
+            List<List<Object>> paramList, DBBulkInsert options) throws SQLException {
+        Connection connection = getConnection(dataSourceName);
+        try {
+            return executeBulkInsert(connection, sqlQuery, subQuery, paramList, options);
+        } finally {
+            close(connection, null, null);
+        }
+    }
+
+    public static DBBatchResult executeBulkInsert(String sqlQuery, List<List<Object>> paramList, DBBulkInsert options)
+            throws SQLException {
+        return executeBulkInsert("default", sqlQuery, "", paramList, options);
+    }
+
 
     public static void execStoredProcedure(String dataSourceName, String procName, List<Object> params) throws SQLException {
         Connection connection = null;
         CallableStatement statement = null;
+        DBMetrics.Timer timer = null;
         try {
             connection = getConnection(dataSourceName);
+            timer = DBMetrics.Timer.start(metrics, connection, procName);
             statement = connection.prepareCall("{ call " + procName + " }");
             int parameterIndex = 1;
             for (Object param : params) {
                 statement.setObject(parameterIndex++, param);
             }
             statement.execute();
+            timer.finish(0);
+        } catch (SQLException | RuntimeException e) {
+            if (timer != null) {
+                timer.fail(e);
+            }
+            throw e;
         } finally {
             close(connection, statement, null);
         }
@@ -459,10 +1093,9 @@ public class DB {
     }
 
     public static void closeDBPool(String dataSourceName) throws SQLException {
-        DataSource dataSource = getDataSourceHashMap().get(dataSourceName);
+        DataSource dataSource = getDataSourceHashMap().remove(dataSourceName);
         if (dataSource != null) {
             dataSource.unwrap(HikariDataSource.class).close();
-            getDataSourceHashMap().remove(dataSource);
         }
     }
 
@@ -479,6 +1112,15 @@ public class DB {
                 statement.close();
             }
             if (connection != null) {
+                DBMetrics dbMetrics = metrics;
+                if (dbMetrics != null) {
+                    dbMetrics.recordRelease(connection);
+                }
+                transactionWrites.remove(connection);
+                DBStatementCache statementCache = statementCaches.remove(connection);
+                if (statementCache != null) {
+                    statementCache.close();
+                }
                 connection.close();
             }
         } catch (SQLException e) {
@@ -486,4 +1128,8 @@ public class DB {
         }
     }
 
+    private static final class PoolState {
+        private int failures;
+        private long nextRebuildAt;
+    }
 }
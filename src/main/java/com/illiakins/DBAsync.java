@@ -0,0 +1,219 @@
+package com.illiakins;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade over the DB methods. Every call runs on the executor and returns a CompletableFuture.
+ * <p>
+ * The number of calls in flight per data source is limited to the maximum pool size of that data source,
+ * so calls wait here instead of blocking on a pool checkout until connectionTimeout. Calls beyond the
+ * pending limit fail right away with an SQLException, which gives callers backpressure.
+ */
+public class DBAsync {
+    private static final Logger LOG = LoggerFactory.getLogger(DBAsync.class);
+    private static final int DEFAULT_MAX_IN_FLIGHT = 10;
+
+    private final Executor executor;
+    private final int maxPendingPerDataSource;
+    private final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * Uses a daemon thread pool, the number of threads is bounded by the in-flight limits.
+     */
+    public DBAsync() {
+        this(false, 1000);
+    }
+
+    /**
+     * @param virtualThreads run the calls on virtual threads when the JVM supports them (Java 21+)
+     * @param maxPendingPerDataSource calls allowed to wait for a free slot per data source
+     */
+    public DBAsync(boolean virtualThreads, int maxPendingPerDataSource) {
+        this(createExecutor(virtualThreads), maxPendingPerDataSource);
+    }
+
+    public DBAsync(Executor executor, int maxPendingPerDataSource) {
+        this.executor = executor;
+        this.maxPendingPerDataSource = maxPendingPerDataSource;
+    }
+
+    private static Executor createExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warn("Virtual threads are not supported by this JVM, using a platform thread pool");
+            }
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "db-async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs a piece of work which uses the named data source under its in-flight limit.
+     */
+    public <T> CompletableFuture<T> submit(String dataSourceName, Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Limiter limiter = limiters.computeIfAbsent(dataSourceName, Limiter::new);
+        if (!limiter.enqueue(new Call(future, () -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }))) {
+            future.completeExceptionally(new SQLException("Too many pending calls for `" + dataSourceName
+                    + "` dataSourceName, " + maxPendingPerDataSource + " are already waiting"));
+        }
+        return future;
+    }
+
+    public CompletableFuture<List<HashMap<String, Object>>> executeQuery(String dataSourceName, String sqlQuery,
+            List<Object> params) {
+        return submit(dataSourceName, () -> DB.executeQuery(dataSourceName, sqlQuery, params));
+    }
+
+    public CompletableFuture<List<HashMap<String, Object>>> executeQuery(String sqlQuery, List<Object> params) {
+        return executeQuery("default", sqlQuery, params);
+    }
+
+    public CompletableFuture<DBResult> executeQueryRows(String dataSourceName, String sqlQuery, List<Object> params) {
+        return submit(dataSourceName, () -> DB.executeQueryRows(dataSourceName, sqlQuery, params));
+    }
+
+    public <T> CompletableFuture<List<T>> query(String dataSourceName, String sqlQuery, List<Object> params,
+            Class<T> type) {
+        return submit(dataSourceName, () -> DB.query(dataSourceName, sqlQuery, params, type));
+    }
+
+    public CompletableFuture<Integer> executeUpdate(String dataSourceName, String sqlQuery, List<Object> params) {
+        return submit(dataSourceName, () -> DB.executeUpdate(dataSourceName, sqlQuery, params));
+    }
+
+    public CompletableFuture<Integer> executeUpdate(String sqlQuery, List<Object> params) {
+        return executeUpdate("default", sqlQuery, params);
+    }
+
+    public CompletableFuture<HashMap<String, Integer>> executeUpdateBatch(String sqlQuery, String subQuery,
+            List<List<Object>> paramList, String dataSourceName) {
+        return submit(dataSourceName, () -> DB.executeUpdateBatch(sqlQuery, subQuery, paramList, dataSourceName));
+    }
+
+    public int getInFlight(String dataSourceName) {
+        Limiter limiter = limiters.get(dataSourceName);
+        return limiter == null ? 0 : limiter.inFlight.get();
+    }
+
+    public int getPending(String dataSourceName) {
+        Limiter limiter = limiters.get(dataSourceName);
+        return limiter == null ? 0 : limiter.pendingCount.get();
+    }
+
+    /**
+     * Shuts the executor down if it is an ExecutorService. Calls already submitted still run.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Task<T> {
+        T call() throws SQLException;
+    }
+
+    private static final class Call {
+        private final CompletableFuture<?> future;
+        private final Runnable body;
+
+        Call(CompletableFuture<?> future, Runnable body) {
+            this.future = future;
+            this.body = body;
+        }
+    }
+
+    private class Limiter {
+        private final String dataSourceName;
+        private final Queue<Call> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Limiter(String dataSourceName) {
+            this.dataSourceName = dataSourceName;
+        }
+
+        boolean enqueue(Call call) {
+            if (pendingCount.incrementAndGet() > maxPendingPerDataSource) {
+                pendingCount.decrementAndGet();
+                return false;
+            }
+            pending.add(call);
+            dispatch();
+            return true;
+        }
+
+        private void dispatch() {
+            while (!pending.isEmpty()) {
+                int running = inFlight.get();
+                if (running >= maxInFlight()) {
+                    return;
+                }
+                if (!inFlight.compareAndSet(running, running + 1)) {
+                    continue;
+                }
+                Call call = pending.poll();
+                if (call == null) {
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                pendingCount.decrementAndGet();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            call.body.run();
+                        } finally {
+                            inFlight.decrementAndGet();
+                            dispatch();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.decrementAndGet();
+                    call.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * Read on every dispatch, so a pool resized at runtime changes the limit as well.
+         */
+        private int maxInFlight() {
+            DataSource dataSource = DB.getDataSource(dataSourceName);
+            if (dataSource instanceof HikariConfig) {
+                return ((HikariConfig) dataSource).getMaximumPoolSize();
+            }
+            HikariConfig config = DB.getConfigMap().get(dataSourceName);
+            return config == null ? DEFAULT_MAX_IN_FLIGHT : config.getMaximumPoolSize();
+        }
+    }
+}
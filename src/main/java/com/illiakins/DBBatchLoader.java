@@ -0,0 +1,388 @@
+package com.illiakins;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Collects point lookups and runs them as a few IN-list queries instead of one query per key:
+ * <pre>
+ * DBBatchLoader&lt;Long&gt; users = new DBBatchLoader&lt;&gt;("default", "SELECT * FROM user WHERE id IN (?)", "id");
+ * List&lt;CompletableFuture&lt;DBRow&gt;&gt; futures = new ArrayList&lt;&gt;();
+ * for (Order order : orders) {
+ *     futures.add(users.loadOne(order.getUserId()));
+ * }
+ * users.dispatch();
+ * </pre>
+ * The query must contain one "IN (?)", it is expanded to the keys of the batch. Other placeholders are bound to
+ * params(). Rows are matched back to the keys by keyColumn, integral numbers match whatever their Java type.
+ * String keys match the way the column collation compares them, by default {@link #CI_PAD_SPACE} like the MySQL
+ * *_general_ci and *_unicode_ci collations. Set keyCollation() for other columns, e.g. {@link #BINARY} for _bin
+ * ones, or keys which only differ in case are merged and get each other's rows.
+ * <p>
+ * Keys are collected per request scope until dispatch() runs the queries on the calling thread. With
+ * batchWindowMillis() the loader dispatches by itself once the window after the first queued key elapsed or
+ * maxBatchSize keys are queued, and the queries run on {@link DB#async()}.
+ * <p>
+ * Duplicate keys are queried once. IN lists are padded to the next power of two by repeating the last key, so a
+ * query uses at most log2(maxBatchSize) + 1 distinct SQL texts and keeps hitting the statement caches.
+ */
+public class DBBatchLoader<K> {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+
+    /**
+     * Binary columns and case-sensitive collations, strings match exactly.
+     */
+    public static final UnaryOperator<String> BINARY = UnaryOperator.identity();
+    /**
+     * PAD SPACE collations such as utf8_general_ci and utf8mb4_unicode_ci: trailing spaces, accents and case are
+     * ignored.
+     */
+    public static final UnaryOperator<String> CI_PAD_SPACE = key -> foldAccentsAndCase(stripTrailingSpaces(key));
+    /**
+     * NO PAD collations such as utf8mb4_0900_ai_ci: accents and case are ignored, trailing spaces are not.
+     */
+    public static final UnaryOperator<String> CI_NO_PAD = DBBatchLoader::foldAccentsAndCase;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "db-batch-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final String IN_PLACEHOLDER = "IN (?)";
+
+    private final String dataSourceName;
+    private final String sqlPrefix;
+    private final String sqlSuffix;
+    private final int keyParamIndex;
+    private final String keyColumn;
+    private final Map<Integer, String> sqlBySize = new ConcurrentHashMap<>();
+    private List<Object> params = Collections.emptyList();
+    private int maxBatchSize = 256;
+    private long batchWindowMillis;
+    private UnaryOperator<String> keyCollation = CI_PAD_SPACE;
+
+    private Map<Object, Pending> queue = new LinkedHashMap<>();
+    private boolean dispatchScheduled;
+
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+
+    public DBBatchLoader(String dataSourceName, String sqlQuery, String keyColumn) {
+        int placeholder = sqlQuery.toUpperCase(Locale.ROOT).indexOf(IN_PLACEHOLDER);
+        if (placeholder < 0) {
+            throw new IllegalArgumentException("The query must contain " + IN_PLACEHOLDER + ": " + sqlQuery);
+        }
+        this.dataSourceName = dataSourceName;
+        this.sqlPrefix = sqlQuery.substring(0, placeholder);
+        this.sqlSuffix = sqlQuery.substring(placeholder + IN_PLACEHOLDER.length());
+        this.keyParamIndex = countPlaceholders(sqlPrefix);
+        this.keyColumn = keyColumn;
+    }
+
+    /**
+     * Values of the other placeholders of the query, in order.
+     */
+    public DBBatchLoader<K> params(List<Object> queryParams) {
+        this.params = queryParams;
+        return this;
+    }
+
+    public DBBatchLoader<K> maxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * How the key column compares strings, {@link #CI_PAD_SPACE} by default.
+     */
+    public DBBatchLoader<K> keyCollation(UnaryOperator<String> keyCollation) {
+        this.keyCollation = keyCollation;
+        return this;
+    }
+
+    /**
+     * Dispatches automatically this long after the first key was queued, 0 (the default) waits for dispatch().
+     */
+    public DBBatchLoader<K> batchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+        return this;
+    }
+
+    /**
+     * Queues the key. The future completes with the rows of the key, an empty list if there are none.
+     */
+    public CompletableFuture<List<DBRow>> load(K key) {
+        CompletableFuture<List<DBRow>> future = new CompletableFuture<>();
+        boolean dispatchNow = false;
+        boolean schedule = false;
+        synchronized (this) {
+            requested.increment();
+            queue.computeIfAbsent(normalizeKey(key), k -> new Pending(key)).futures.add(future);
+            if (batchWindowMillis > 0) {
+                if (queue.size() >= maxBatchSize) {
+                    dispatchNow = true;
+                } else if (!dispatchScheduled) {
+                    dispatchScheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+        if (dispatchNow) {
+            dispatchAsync();
+        } else if (schedule) {
+            SCHEDULER.schedule(this::dispatchAsync, batchWindowMillis, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * Queues the key. The future completes with the first row of the key or NULL.
+     */
+    public CompletableFuture<DBRow> loadOne(K key) {
+        return load(key).thenApply(rows -> rows.isEmpty() ? null : rows.get(0));
+    }
+
+    /**
+     * Loads the keys right away in as few queries as possible, bypassing the queue.
+     * @return rows by key, every key is present, with an empty list if it has no rows
+     */
+    public Map<K, List<DBRow>> loadMany(Collection<K> keys) throws SQLException {
+        Map<Object, Pending> batch = new LinkedHashMap<>();
+        for (K key : keys) {
+            requested.increment();
+            batch.computeIfAbsent(normalizeKey(key), k -> new Pending(key));
+        }
+        List<Map.Entry<Object, Pending>> entries = new ArrayList<>(batch.entrySet());
+        for (int start = 0; start < entries.size(); start += maxBatchSize) {
+            List<Map.Entry<Object, Pending>> chunk =
+                    entries.subList(start, Math.min(entries.size(), start + maxBatchSize));
+            collect(chunk, runChunk(chunk));
+        }
+        Map<K, List<DBRow>> result = new LinkedHashMap<>();
+        for (Pending pending : batch.values()) {
+            result.put(pending.key, pending.rows);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the queued keys on the calling thread and completes their futures.
+     */
+    public void dispatch() {
+        for (List<Map.Entry<Object, Pending>> chunk : drain()) {
+            try {
+                complete(chunk, runChunk(chunk), null);
+            } catch (SQLException | RuntimeException e) {
+                complete(chunk, null, e);
+            }
+        }
+    }
+
+    private void dispatchAsync() {
+        for (List<Map.Entry<Object, Pending>> chunk : drain()) {
+            List<Object> chunkParams = new ArrayList<>();
+            String sqlQuery = prepareChunk(chunk, chunkParams);
+            DB.async().executeQueryRows(dataSourceName, sqlQuery, chunkParams)
+                    .whenComplete((rows, e) -> complete(chunk, rows, e));
+        }
+    }
+
+    private List<List<Map.Entry<Object, Pending>>> drain() {
+        Map<Object, Pending> batch;
+        synchronized (this) {
+            batch = queue;
+            queue = new LinkedHashMap<>();
+            dispatchScheduled = false;
+        }
+        List<Map.Entry<Object, Pending>> entries = new ArrayList<>(batch.entrySet());
+        List<List<Map.Entry<Object, Pending>>> chunks = new ArrayList<>();
+        for (int start = 0; start < entries.size(); start += maxBatchSize) {
+            chunks.add(entries.subList(start, Math.min(entries.size(), start + maxBatchSize)));
+        }
+        return chunks;
+    }
+
+    private DBResult runChunk(List<Map.Entry<Object, Pending>> chunk) throws SQLException {
+        List<Object> chunkParams = new ArrayList<>();
+        String sqlQuery = prepareChunk(chunk, chunkParams);
+        return DB.executeQueryRows(dataSourceName, sqlQuery, chunkParams);
+    }
+
+    private String prepareChunk(List<Map.Entry<Object, Pending>> chunk, List<Object> chunkParams) {
+        int size = Integer.highestOneBit(chunk.size());
+        if (size < chunk.size()) {
+            size <<= 1;
+        }
+        size = Math.min(size, Math.max(maxBatchSize, chunk.size()));
+        chunkParams.addAll(params.subList(0, Math.min(keyParamIndex, params.size())));
+        for (Map.Entry<Object, Pending> entry : chunk) {
+            chunkParams.add(entry.getValue().key);
+        }
+        Object last = chunk.get(chunk.size() - 1).getValue().key;
+        for (int i = chunk.size(); i < size; i++) {
+            chunkParams.add(last);
+        }
+        if (keyParamIndex < params.size()) {
+            chunkParams.addAll(params.subList(keyParamIndex, params.size()));
+        }
+        queries.increment();
+        return sqlBySize.computeIfAbsent(size, this::buildSql);
+    }
+
+    private String buildSql(int size) {
+        StringBuilder builder = new StringBuilder(sqlPrefix.length() + sqlSuffix.length() + 6 + size * 3);
+        builder.append(sqlPrefix).append("IN (");
+        for (int i = 0; i < size; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.append(')').append(sqlSuffix).toString();
+    }
+
+    private void collect(List<Map.Entry<Object, Pending>> chunk, DBResult result) throws SQLException {
+        int column = keyIndex(result.getSchema());
+        Map<Object, Pending> byKey = new LinkedHashMap<>();
+        for (Map.Entry<Object, Pending> entry : chunk) {
+            byKey.put(entry.getKey(), entry.getValue());
+            entry.getValue().rows = new ArrayList<>();
+        }
+        for (DBRow row : result) {
+            Pending pending = byKey.get(normalizeKey(row.getValue(column)));
+            if (pending != null) {
+                pending.rows.add(row);
+            }
+        }
+    }
+
+    private void complete(List<Map.Entry<Object, Pending>> chunk, DBResult result, Throwable error) {
+        if (error == null) {
+            try {
+                collect(chunk, result);
+            } catch (SQLException | RuntimeException e) {
+                error = e;
+            }
+        }
+        for (Map.Entry<Object, Pending> entry : chunk) {
+            Pending pending = entry.getValue();
+            for (CompletableFuture<List<DBRow>> future : pending.futures) {
+                if (error == null) {
+                    future.complete(Collections.unmodifiableList(pending.rows));
+                } else {
+                    future.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    private int keyIndex(DBRowSchema schema) throws SQLException {
+        int index = schema.indexOf(keyColumn);
+        for (int i = 0; index < 0 && i < schema.getColumnCount(); i++) {
+            // databases differ in the case of unquoted labels
+            if (schema.getColumnLabel(i).equalsIgnoreCase(keyColumn)) {
+                index = i;
+            }
+        }
+        if (index < 0) {
+            throw new SQLException("ResultSet does not contain the key column " + keyColumn);
+        }
+        return index;
+    }
+
+    /**
+     * Integral numbers compare by value, whatever type the caller or the driver used, strings by keyCollation.
+     */
+    private Object normalizeKey(Object key) {
+        if (key instanceof String) {
+            return keyCollation.apply((String) key);
+        }
+        if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        if (key instanceof BigInteger && ((BigInteger) key).bitLength() < 64) {
+            return ((BigInteger) key).longValue();
+        }
+        if (key instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) key;
+            if (decimal.signum() == 0 || decimal.stripTrailingZeros().scale() <= 0 && decimal.precision() < 19) {
+                return decimal.longValue();
+            }
+        }
+        return key;
+    }
+
+    private static String foldAccentsAndCase(String key) {
+        return COMBINING_MARKS.matcher(Normalizer.normalize(key, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+    }
+
+    private static String stripTrailingSpaces(String key) {
+        int end = key.length();
+        while (end > 0 && key.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return key.substring(0, end);
+    }
+
+    private static int countPlaceholders(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keys requested through load(), loadOne() and loadMany(), duplicates included.
+     */
+    public long getRequestedCount() {
+        return requested.sum();
+    }
+
+    /**
+     * IN-list queries issued.
+     */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DBBatchLoader{" + dataSourceName + ", requested=" + getRequestedCount() + ", queries="
+                + getQueryCount() + "}";
+    }
+
+    private final class Pending {
+        private final K key;
+        private final List<CompletableFuture<List<DBRow>>> futures = new ArrayList<>(1);
+        private List<DBRow> rows = Collections.emptyList();
+
+        Pending(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.illiakins;
+
+import java.util.Arrays;
+
+/**
+ * Outcome of a chunked bulk write: affected rows per executed chunk and every generated key.
+ */
+public class DBBatchResult {
+    private int[] chunkAffected = new int[8];
+    private int chunkCount;
+    private long[] generatedKeys = new long[16];
+    private int keyCount;
+
+    void addChunk(int affected) {
+        if (chunkCount == chunkAffected.length) {
+            chunkAffected = Arrays.copyOf(chunkAffected, chunkCount * 2);
+        }
+        chunkAffected[chunkCount++] = affected;
+    }
+
+    void addGeneratedKey(long key) {
+        if (keyCount == generatedKeys.length) {
+            generatedKeys = Arrays.copyOf(generatedKeys, keyCount * 2);
+        }
+        generatedKeys[keyCount++] = key;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public int[] getChunkAffected() {
+        return Arrays.copyOf(chunkAffected, chunkCount);
+    }
+
+    public long getAffected() {
+        long affected = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            affected += chunkAffected[i];
+        }
+        return affected;
+    }
+
+    public long[] getGeneratedKeys() {
+        return Arrays.copyOf(generatedKeys, keyCount);
+    }
+
+    public int getGeneratedKeyCount() {
+        return keyCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DBBatchResult{chunks=" + chunkCount + ", affected=" + getAffected() + ", keys=" + keyCount + "}";
+    }
+}
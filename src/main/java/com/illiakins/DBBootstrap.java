@@ -0,0 +1,195 @@
+package com.illiakins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the data sources declared in the configuration in parallel and optionally warms them up.
+ * <p>
+ * "db.dataSources" lists the names, every data source is configured under "db.&lt;name&gt;.":
+ * <pre>
+ * db.dataSources=default,shard1
+ * db.shard1.jdbcUrl=jdbc:mysql://shard1/app
+ * db.shard1.username=app
+ * db.shard1.password=secret
+ * db.shard1.minimumIdle=5                 (default maximumPoolSize)
+ * db.shard1.maximumPoolSize=20            (default 10)
+ * db.shard1.connectionTimeout=5000        (default 5000)
+ * db.shard1.idleTimeout=900000            (default 600000)
+ * db.shard1.maxLifetime=28440000          (default 1800000)
+ * db.shard1.leakDetectionThreshold=2500   (default 0, off)
+ * db.shard1.warmUp=true
+ * db.shard1.validationQuery=SELECT 1      (default)
+ * db.shard1.warmUpStatements=SELECT * FROM user WHERE id = ?;SELECT * FROM account WHERE user_id = ?
+ * </pre>
+ * Warming up opens minimumIdle connections, runs the validation query on each of them and prepares the warm-up
+ * statements on each of them, so the driver statement cache is filled before the first request. The same keys
+ * stay bound through {@link DBPoolSettings}, so the pools can be tuned at runtime.
+ * <p>
+ * ready() completes once every data source is created and warm, or completes exceptionally when one failed.
+ */
+public class DBBootstrap {
+    private static final Logger LOG = LoggerFactory.getLogger(DBBootstrap.class);
+
+    private final Map<String, CompletableFuture<Long>> dataSources = new LinkedHashMap<>();
+    private final CompletableFuture<Void> ready;
+
+    private DBBootstrap(List<String> dataSourceNames) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, dataSourceNames.size()), runnable -> {
+            Thread thread = new Thread(runnable, "db-bootstrap-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (String name : dataSourceNames) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            dataSources.put(name, future);
+            executor.execute(() -> {
+                try {
+                    future.complete(startDataSource(name));
+                } catch (Throwable e) {
+                    LOG.error("Data source `{}` failed to start", name, e);
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        executor.shutdown();
+        ready = CompletableFuture.allOf(dataSources.values().toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Starts the data sources listed in "db.dataSources".
+     */
+    public static DBBootstrap start() {
+        List<String> names = new ArrayList<>();
+        for (String name : PropertiesReader.getArraySetting("db.dataSources")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return start(names);
+    }
+
+    public static DBBootstrap start(List<String> dataSourceNames) {
+        return new DBBootstrap(dataSourceNames);
+    }
+
+    public CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    public boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Waits until every data source is ready.
+     * @return false if the timeout elapsed first
+     * @throws SQLException if a data source failed to start
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws SQLException, InterruptedException {
+        try {
+            ready.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new SQLException("Data sources failed to start", e.getCause());
+        }
+    }
+
+    /**
+     * Milliseconds each data source took to start and warm up, only for the ones which are ready.
+     */
+    public Map<String, Long> getStartupMillis() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        dataSources.forEach((name, future) -> {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                result.put(name, future.join());
+            }
+        });
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static long startDataSource(String name) throws SQLException {
+        long start = System.nanoTime();
+        String prefix = "db." + name + ".";
+        String jdbcUrl = PropertiesReader.getStringSetting(prefix + "jdbcUrl");
+        if (jdbcUrl.isEmpty()) {
+            throw new SQLException("No " + prefix + "jdbcUrl configured for the name: " + name);
+        }
+        int maximumPoolSize = PropertiesReader.getIntProperty(prefix + "maximumPoolSize", 10).get();
+        DBPoolSettings.bind(name);
+        DataSource dataSource = DB.registerDataSource(name, DB.newConfig(jdbcUrl,
+                PropertiesReader.getStringSetting(prefix + "username"),
+                PropertiesReader.getStringSetting(prefix + "password"),
+                PropertiesReader.getIntProperty(prefix + "minimumIdle", maximumPoolSize).get(),
+                maximumPoolSize,
+                PropertiesReader.getLongProperty(prefix + "leakDetectionThreshold", 0).get(),
+                PropertiesReader.getLongProperty(prefix + "connectionTimeout", 5_000).get(),
+                PropertiesReader.getLongProperty(prefix + "idleTimeout", 600_000).get(),
+                PropertiesReader.getLongProperty(prefix + "maxLifetime", 1_800_000).get()));
+        if (PropertiesReader.getBooleanSetting(prefix + "warmUp")) {
+            String validationQuery = PropertiesReader.getStringProperty(prefix + "validationQuery", "SELECT 1").get();
+            List<String> statements = new ArrayList<>();
+            for (String sqlQuery : PropertiesReader.getStringSetting(prefix + "warmUpStatements").split(";")) {
+                if (!sqlQuery.trim().isEmpty()) {
+                    statements.add(sqlQuery.trim());
+                }
+            }
+            warmUp(name, dataSource, DB.getConfigMap().get(name).getMinimumIdle(), validationQuery, statements);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOG.info("Data source `{}` ready in {} ms", name, millis);
+        return millis;
+    }
+
+    /**
+     * Opens the connections at the same time, so the pool creates that many instead of handing out the same one.
+     */
+    static void warmUp(String name, DataSource dataSource, int connections, String validationQuery,
+            List<String> statements) throws SQLException {
+        List<Connection> opened = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                Connection connection = dataSource.getConnection();
+                opened.add(connection);
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery(validationQuery)) {
+                    resultSet.next();
+                    LOG.debug("Validated connection {} of `{}`", i + 1, name);
+                }
+                for (String sqlQuery : statements) {
+                    connection.prepareStatement(sqlQuery).close();
+                    LOG.trace("Prepared `{}` on `{}`", sqlQuery, name);
+                }
+            }
+        } finally {
+            for (Connection connection : opened) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOG.debug("Unable to return a warm-up connection of `{}`", name, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.illiakins;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunked bulk insert engine used by DB.executeUpdateBatch() and DB.executeBulkInsert().
+ * <p>
+ * Rows are split into chunks which respect the placeholder limit of a prepared statement and an estimated
+ * packet size (MySQL max_allowed_packet). Full chunks share one statement shape, a smaller tail chunk is split
+ * into power-of-two sizes, so the number of distinct SQL strings stays small and the driver statement cache
+ * (prepStmtCacheSize) gets hits.
+ * <p>
+ * In JDBC batch mode every row is added with addBatch() to a single-row statement. Add the
+ * `rewriteBatchedStatements=true` data source property to let Connector/J send such a batch as one multi-row insert.
+ * <p>
+ * When the connection is in auto-commit mode and the input needs more than one chunk, all chunks run
+ * in one transaction, so the insert stays all-or-nothing like a single statement.
+ */
+public class DBBulkInsert {
+    public static final int MAX_PLACEHOLDERS = 65_535;
+
+    private int maxPlaceholders = MAX_PLACEHOLDERS;
+    private long maxPacketBytes = 4 * 1024 * 1024; // MySQL 5.7 default max_allowed_packet
+    private int maxRowsPerChunk = 1000;
+    private boolean jdbcBatch = false;
+    private boolean returnGeneratedKeys = true;
+
+    public int getMaxPlaceholders() {
+        return maxPlaceholders;
+    }
+
+    public DBBulkInsert setMaxPlaceholders(int maxPlaceholders) {
+        this.maxPlaceholders = maxPlaceholders;
+        return this;
+    }
+
+    public long getMaxPacketBytes() {
+        return maxPacketBytes;
+    }
+
+    public DBBulkInsert setMaxPacketBytes(long maxPacketBytes) {
+        this.maxPacketBytes = maxPacketBytes;
+        return this;
+    }
+
+    public int getMaxRowsPerChunk() {
+        return maxRowsPerChunk;
+    }
+
+    public DBBulkInsert setMaxRowsPerChunk(int maxRowsPerChunk) {
+        this.maxRowsPerChunk = maxRowsPerChunk;
+        return this;
+    }
+
+    public boolean isJdbcBatch() {
+        return jdbcBatch;
+    }
+
+    public DBBulkInsert setJdbcBatch(boolean jdbcBatch) {
+        this.jdbcBatch = jdbcBatch;
+        return this;
+    }
+
+    public boolean isReturnGeneratedKeys() {
+        return returnGeneratedKeys;
+    }
+
+    public DBBulkInsert setReturnGeneratedKeys(boolean returnGeneratedKeys) {
+        this.returnGeneratedKeys = returnGeneratedKeys;
+        return this;
+    }
+
+    /**
+     * @param sqlQuery insert statement up to and including VALUES, for example "INSERT INTO t (a, b) VALUES "
+     * @param subQuery optional tail appended after the values, for example "ON DUPLICATE KEY UPDATE ..."
+     * @param paramList one list of values per row, every row must have the same number of values
+     */
+    public DBBatchResult execute(Connection connection, String sqlQuery, String subQuery,
+            List<List<Object>> paramList) throws SQLException {
+        DBBatchResult result = new DBBatchResult();
+        if (paramList.isEmpty()) {
+            return result;
+        }
+        int width = paramList.get(0).size();
+        if (width == 0) {
+            throw new SQLException("Batch rows must contain at least one value");
+        }
+        int maxRows = Math.max(1, Math.min(maxRowsPerChunk, maxPlaceholders / width));
+        int[] chunks = jdbcBatch ? planBatchChunks(paramList.size(), maxRows)
+                : planChunks(paramList, width, maxRows, maxPacketBytes - sqlQuery.length() - subQuery.length() - 1024);
+        boolean ownTransaction = chunks.length > 1 && connection.getAutoCommit();
+        if (ownTransaction) {
+            connection.setAutoCommit(false);
+        }
+        try {
+            if (jdbcBatch) {
+                executeJdbcBatch(connection, buildSql(sqlQuery, subQuery, width, 1), paramList, width, chunks, result);
+            } else {
+                executeMultiRow(connection, sqlQuery, subQuery, paramList, width, chunks, result);
+            }
+            if (ownTransaction) {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            if (ownTransaction) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ex) {
+                    e.addSuppressed(ex);
+                }
+            }
+            throw e;
+        } finally {
+            if (ownTransaction) {
+                connection.setAutoCommit(true);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits the rows into chunks of at most maxRows rows and budget bytes. Chunks smaller than maxRows
+     * are rounded down to a power of two to limit the number of statement shapes.
+     */
+    private static int[] planChunks(List<List<Object>> paramList, int width, int maxRows, long budget)
+            throws SQLException {
+        int[] chunks = new int[16];
+        int chunkCount = 0;
+        int offset = 0;
+        while (offset < paramList.size()) {
+            int rows = 0;
+            long bytes = 0;
+            while (offset + rows < paramList.size() && rows < maxRows) {
+                long rowBytes = estimateBytes(paramList.get(offset + rows), width);
+                if (rows > 0 && bytes + rowBytes > budget) {
+                    break;
+                }
+                bytes += rowBytes;
+                rows++;
+            }
+            if (rows < maxRows) {
+                rows = Integer.highestOneBit(rows);
+            }
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            }
+            chunks[chunkCount++] = rows;
+            offset += rows;
+        }
+        return Arrays.copyOf(chunks, chunkCount);
+    }
+
+    private static int[] planBatchChunks(int rowCount, int maxRows) {
+        int[] chunks = new int[(rowCount + maxRows - 1) / maxRows];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = Math.min(maxRows, rowCount - i * maxRows);
+        }
+        return chunks;
+    }
+
+    private void executeMultiRow(Connection connection, String sqlQuery, String subQuery,
+            List<List<Object>> paramList, int width, int[] chunks, DBBatchResult result) throws SQLException {
+        Map<Integer, PreparedStatement> statements = new HashMap<>();
+        try {
+            int offset = 0;
+            for (int rows : chunks) {
+                PreparedStatement statement = statements.get(rows);
+                if (statement == null) {
+                    statement = prepare(connection, buildSql(sqlQuery, subQuery, width, rows));
+                    statements.put(rows, statement);
+                }
+                int parameterIndex = 1;
+                for (int i = offset; i < offset + rows; i++) {
+                    for (Object value : paramList.get(i)) {
+                        statement.setObject(parameterIndex++, value);
+                    }
+                }
+                statement.execute();
+                result.addChunk(statement.getUpdateCount());
+                readGeneratedKeys(statement, result);
+                offset += rows;
+            }
+        } finally {
+            SQLException closeException = null;
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    closeException = e;
+                }
+            }
+            if (closeException != null) {
+                throw new SQLException("SQL error occurred during closing a statement", closeException);
+            }
+        }
+    }
+
+    private void executeJdbcBatch(Connection connection, String sql, List<List<Object>> paramList, int width,
+            int[] chunks, DBBatchResult result) throws SQLException {
+        PreparedStatement statement = null;
+        try {
+            statement = prepare(connection, sql);
+            int offset = 0;
+            for (int rows : chunks) {
+                for (int i = offset; i < offset + rows; i++) {
+                    List<Object> row = paramList.get(i);
+                    checkWidth(row, width);
+                    int parameterIndex = 1;
+                    for (Object value : row) {
+                        statement.setObject(parameterIndex++, value);
+                    }
+                    statement.addBatch();
+                }
+                int affected = 0;
+                for (int count : statement.executeBatch()) {
+                    if (count > 0) {
+                        affected += count;
+                    }
+                }
+                result.addChunk(affected);
+                readGeneratedKeys(statement, result);
+                offset += rows;
+            }
+        } finally {
+            DB.close(null, statement, null);
+        }
+    }
+
+    private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        return returnGeneratedKeys ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sql);
+    }
+
+    private void readGeneratedKeys(Statement statement, DBBatchResult result) throws SQLException {
+        if (!returnGeneratedKeys) {
+            return;
+        }
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+            while (keys.next()) {
+                result.addGeneratedKey(keys.getLong(1));
+            }
+        }
+    }
+
+    static String buildSql(String sqlQuery, String subQuery, int width, int rows) {
+        StringBuilder builder = new StringBuilder(sqlQuery.length() + subQuery.length() + 1 + rows * (width * 2 + 2));
+        builder.append(sqlQuery);
+        for (int row = 0; row < rows; row++) {
+            builder.append(row == 0 ? "(" : ",(");
+            for (int i = 0; i < width; i++) {
+                builder.append(i == 0 ? "?" : ",?");
+            }
+            builder.append(')');
+        }
+        if (!subQuery.isEmpty()) {
+            builder.append(' ').append(subQuery);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Rough upper bound of the bytes the row takes in the statement sent to the server.
+     */
+    private static long estimateBytes(List<Object> row, int width) throws SQLException {
+        checkWidth(row, width);
+        long bytes = 3;
+        for (Object value : row) {
+            if (value == null) {
+                bytes += 5;
+            } else if (value instanceof CharSequence) {
+                bytes += ((CharSequence) value).length() * 3L + 3; // UTF-8 and escaping
+            } else if (value instanceof byte[]) {
+                bytes += ((byte[]) value).length * 2L + 3;
+            } else {
+                bytes += 32;
+            }
+        }
+        return bytes;
+    }
+
+    private static void checkWidth(List<Object> row, int width) throws SQLException {
+        if (row.size() != width) {
+            throw new SQLException("All batch rows must have " + width + " values, found a row with " + row.size());
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.illiakins;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Builds {@link DBRowMapper}s which map result columns to the fields, setters or constructor parameters of a class.
+ * The class is inspected once per class and column layout, the resulting plan is cached and reads the values
+ * straight from the ResultSet with typed getters.
+ * Columns are matched to properties ignoring case and underscores, so `created_at` fills `createdAt`.
+ * Setters win over fields, columns without a matching property are ignored.
+ * Classes without a no-arg constructor are created through the constructor which takes one argument per column.
+ */
+public final class DBClassMapper {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Map<PlanKey, DBRowMapper<?>> PLANS = new ConcurrentHashMap<>();
+
+    private DBClassMapper() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> DBRowMapper<T> forResultSet(Class<T> type, ResultSetMetaData md) throws SQLException {
+        String[] labels = new String[md.getColumnCount()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = md.getColumnLabel(i + 1);
+        }
+        PlanKey key = new PlanKey(type, labels);
+        DBRowMapper<?> mapper = PLANS.get(key);
+        if (mapper == null) {
+            mapper = compile(type, labels);
+            DBRowMapper<?> existing = PLANS.putIfAbsent(key, mapper);
+            if (existing != null) {
+                mapper = existing;
+            }
+        }
+        return (DBRowMapper<T>) mapper;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> DBRowMapper<T> compile(Class<T> type, String[] labels) throws SQLException {
+        try {
+            Constructor<T> noArgConstructor = null;
+            for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+                if (constructor.getParameterCount() == 0) {
+                    noArgConstructor = (Constructor<T>) constructor;
+                }
+            }
+            if (noArgConstructor != null) {
+                return compileProperties(type, noArgConstructor, labels);
+            }
+            return compileConstructor(type, labels);
+        } catch (SQLException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SQLException("Unable to build a row mapper for " + type.getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> DBRowMapper<T> compileProperties(Class<T> type, Constructor<T> constructor, String[] labels)
+            throws Throwable {
+        boolean lambdas = isVisible(type);
+        constructor.setAccessible(true);
+        Supplier<T> factory = factory(type, LOOKUP.unreflectConstructor(constructor), lambdas);
+
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = labels.length - 1; i >= 0; i--) {
+            columns.put(normalize(labels[i]), i + 1);
+        }
+        List<ColumnWriter<T>> writers = new ArrayList<>();
+        Set<String> bound = new HashSet<>();
+        for (Method method : type.getMethods()) {
+            String name = method.getName();
+            if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1
+                    && !Modifier.isStatic(method.getModifiers())) {
+                String property = normalize(name.substring(3));
+                Integer column = columns.get(property);
+                if (column != null && bound.add(property)) {
+                    writers.add(writer(type, LOOKUP.unreflect(method), method.getParameterTypes()[0], column,
+                            lambdas && Modifier.isPublic(method.getDeclaringClass().getModifiers())));
+                }
+            }
+        }
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                String property = normalize(field.getName());
+                Integer column = columns.get(property);
+                if (column != null && !Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)
+                        && bound.add(property)) {
+                    field.setAccessible(true);
+                    writers.add(writer(type, LOOKUP.unreflectSetter(field), field.getType(), column, false));
+                }
+            }
+        }
+        return rs -> {
+            T target = factory.get();
+            for (int i = 0; i < writers.size(); i++) {
+                writers.get(i).write(target, rs);
+            }
+            return target;
+        };
+    }
+
+    private static <T> DBRowMapper<T> compileConstructor(Class<T> type, String[] labels) throws Throwable {
+        Constructor<?> constructor = null;
+        for (Constructor<?> candidate : type.getDeclaredConstructors()) {
+            if (candidate.getParameterCount() == labels.length
+                    && (constructor == null || Modifier.isPublic(candidate.getModifiers()))) {
+                constructor = candidate;
+            }
+        }
+        if (constructor == null) {
+            throw new SQLException(type.getName() + " has neither a no-arg constructor nor a constructor with "
+                    + labels.length + " parameters");
+        }
+        Parameter[] parameters = constructor.getParameters();
+        int[] columns = new int[parameters.length];
+        ColumnReader[] readers = new ColumnReader[parameters.length];
+        Object[] defaults = new Object[parameters.length];
+        List<String> normalizedLabels = new ArrayList<>();
+        for (String label : labels) {
+            normalizedLabels.add(normalize(label));
+        }
+        for (int i = 0; i < parameters.length; i++) {
+            int column = parameters[i].isNamePresent() ? normalizedLabels.indexOf(normalize(parameters[i].getName()))
+                    : i;
+            if (column < 0) {
+                throw new SQLException("ResultSet does not contain column for constructor parameter '"
+                        + parameters[i].getName() + "' of " + type.getName());
+            }
+            columns[i] = column + 1;
+            readers[i] = reader(parameters[i].getType());
+            if (parameters[i].getType().isPrimitive()) {
+                defaults[i] = Array.get(Array.newInstance(parameters[i].getType(), 1), 0);
+            }
+        }
+        constructor.setAccessible(true);
+        MethodHandle handle = LOOKUP.unreflectConstructor(constructor)
+                .asType(MethodType.methodType(Object.class, constructor.getParameterTypes()))
+                .asSpreader(Object[].class, parameters.length);
+        return rs -> {
+            Object[] args = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                Object value = readers[i].read(rs, columns[i]);
+                args[i] = value == null ? defaults[i] : value;
+            }
+            try {
+                return type.cast(handle.invoke(args));
+            } catch (Throwable e) {
+                throw new SQLException("Unable to create " + type.getName(), e);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> factory(Class<T> type, MethodHandle constructor, boolean lambdas) {
+        if (lambdas) {
+            try {
+                return (Supplier<T>) lambda(Supplier.class, "get", MethodType.methodType(Object.class), constructor,
+                        MethodType.methodType(type));
+            } catch (Throwable e) {
+                // fall back to the method handle below
+            }
+        }
+        MethodHandle erased = constructor.asType(MethodType.methodType(Object.class));
+        return () -> {
+            try {
+                return (T) (Object) erased.invokeExact();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Unable to create " + type.getName(), e);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ColumnWriter<T> writer(Class<T> type, MethodHandle setter, Class<?> valueType, int column,
+            boolean lambdas) throws Throwable {
+        if (lambdas) {
+            try {
+                if (valueType == int.class) {
+                    ObjIntConsumer<T> set = (ObjIntConsumer<T>) lambda(ObjIntConsumer.class, "accept",
+                            MethodType.methodType(void.class, Object.class, int.class), setter,
+                            MethodType.methodType(void.class, type, int.class));
+                    return (target, rs) -> {
+                        int value = rs.getInt(column);
+                        if (!rs.wasNull()) set.accept(target, value);
+                    };
+                }
+                if (valueType == long.class) {
+                    ObjLongConsumer<T> set = (ObjLongConsumer<T>) lambda(ObjLongConsumer.class, "accept",
+                            MethodType.methodType(void.class, Object.class, long.class), setter,
+                            MethodType.methodType(void.class, type, long.class));
+                    return (target, rs) -> {
+                        long value = rs.getLong(column);
+                        if (!rs.wasNull()) set.accept(target, value);
+                    };
+                }
+                if (valueType == double.class) {
+                    ObjDoubleConsumer<T> set = (ObjDoubleConsumer<T>) lambda(ObjDoubleConsumer.class, "accept",
+                            MethodType.methodType(void.class, Object.class, double.class), setter,
+                            MethodType.methodType(void.class, type, double.class));
+                    return (target, rs) -> {
+                        double value = rs.getDouble(column);
+                        if (!rs.wasNull()) set.accept(target, value);
+                    };
+                }
+                BiConsumer<T, Object> set = (BiConsumer<T, Object>) lambda(BiConsumer.class, "accept",
+                        MethodType.methodType(void.class, Object.class, Object.class), setter,
+                        MethodType.methodType(void.class, type, MethodType.methodType(valueType).wrap().returnType()));
+                ColumnReader reader = reader(valueType);
+                boolean primitive = valueType.isPrimitive();
+                return (target, rs) -> {
+                    Object value = reader.read(rs, column);
+                    if (value != null || !primitive) set.accept(target, value);
+                };
+            } catch (Throwable e) {
+                // fall back to the method handle below
+            }
+        }
+        MethodHandle erased = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+        ColumnReader reader = reader(valueType);
+        boolean primitive = valueType.isPrimitive();
+        return (target, rs) -> {
+            Object value = reader.read(rs, column);
+            if (value != null || !primitive) {
+                try {
+                    erased.invokeExact((Object) target, value);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new SQLException("Unable to set column " + column + " of " + type.getName(), e);
+                }
+            }
+        };
+    }
+
+    private static Object lambda(Class<?> functionalInterface, String methodName, MethodType samType,
+            MethodHandle implementation, MethodType instantiatedType) throws Throwable {
+        CallSite site = LambdaMetafactory.metafactory(LOOKUP, methodName, MethodType.methodType(functionalInterface),
+                samType, implementation, instantiatedType);
+        return site.getTarget().invoke();
+    }
+
+    /**
+     * Generated lambdas are defined next to this class, so the target class has to be public
+     * and loadable by the class loader of the library.
+     */
+    private static boolean isVisible(Class<?> type) {
+        if (!Modifier.isPublic(type.getModifiers())) {
+            return false;
+        }
+        try {
+            return Class.forName(type.getName(), false, DBClassMapper.class.getClassLoader()) == type;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a reader which gets the column with the getter matching the Java type, NULL for SQL NULL.
+     * Primitive types are read as their wrappers.
+     */
+    static ColumnReader reader(Class<?> type) {
+        if (type == int.class || type == Integer.class) {
+            return (rs, i) -> {
+                int value = rs.getInt(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == long.class || type == Long.class) {
+            return (rs, i) -> {
+                long value = rs.getLong(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == double.class || type == Double.class) {
+            return (rs, i) -> {
+                double value = rs.getDouble(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == float.class || type == Float.class) {
+            return (rs, i) -> {
+                float value = rs.getFloat(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == short.class || type == Short.class) {
+            return (rs, i) -> {
+                short value = rs.getShort(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == byte.class || type == Byte.class) {
+            return (rs, i) -> {
+                byte value = rs.getByte(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return (rs, i) -> {
+                boolean value = rs.getBoolean(i);
+                return rs.wasNull() ? null : value;
+            };
+        }
+        if (type == String.class) {
+            return ResultSet::getString;
+        }
+        if (type == BigDecimal.class) {
+            return ResultSet::getBigDecimal;
+        }
+        if (type == byte[].class) {
+            return ResultSet::getBytes;
+        }
+        if (type == Timestamp.class) {
+            return ResultSet::getTimestamp;
+        }
+        if (type == Date.class) {
+            return ResultSet::getDate;
+        }
+        if (type == Time.class) {
+            return ResultSet::getTime;
+        }
+        if (type == LocalDateTime.class) {
+            return (rs, i) -> {
+                Timestamp value = rs.getTimestamp(i);
+                return value == null ? null : value.toLocalDateTime();
+            };
+        }
+        if (type == LocalDate.class) {
+            return (rs, i) -> {
+                Date value = rs.getDate(i);
+                return value == null ? null : value.toLocalDate();
+            };
+        }
+        if (type == LocalTime.class) {
+            return (rs, i) -> {
+                Time value = rs.getTime(i);
+                return value == null ? null : value.toLocalTime();
+            };
+        }
+        if (type.isEnum()) {
+            return (rs, i) -> {
+                String value = rs.getString(i);
+                return value == null ? null : enumValue(type, value);
+            };
+        }
+        return ResultSet::getObject;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumValue(Class type, String value) {
+        return Enum.valueOf(type, value);
+    }
+
+    private static String normalize(String name) {
+        return name.replace("_", "").toLowerCase();
+    }
+
+    @FunctionalInterface
+    interface ColumnReader {
+        Object read(ResultSet rs, int columnIndex) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface ColumnWriter<T> {
+        void write(T target, ResultSet rs) throws SQLException;
+    }
+
+    private static final class PlanKey {
+        private final Class<?> type;
+        private final String[] labels;
+        private final int hash;
+
+        PlanKey(Class<?> type, String[] labels) {
+            this.type = type;
+            this.labels = labels;
+            this.hash = 31 * type.hashCode() + Arrays.hashCode(labels);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PlanKey)) {
+                return false;
+            }
+            PlanKey other = (PlanKey) o;
+            return type == other.type && Arrays.equals(labels, other.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
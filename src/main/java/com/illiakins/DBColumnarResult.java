@@ -0,0 +1,407 @@
+package com.illiakins;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Column-oriented query result. Integer, bigint and floating point columns are read with
+ * ResultSet.getInt/getLong/getDouble into primitive arrays, NULLs are tracked in a bitmap per column.
+ * Any other column (strings, decimals, temporals...) is kept as an Object vector.
+ */
+public class DBColumnarResult {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final DBRowSchema schema;
+    private final Column[] columns;
+    private int rowCount;
+
+    private DBColumnarResult(DBRowSchema schema, Column[] columns) {
+        this.schema = schema;
+        this.columns = columns;
+    }
+
+    public static DBColumnarResult of(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        DBRowSchema schema = DBRowSchema.of(md);
+        Column[] columns = new Column[schema.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = newColumn(schema.getColumnLabel(i), md.getColumnType(i + 1), md.isSigned(i + 1));
+        }
+        DBColumnarResult result = new DBColumnarResult(schema, columns);
+        int row = 0;
+        while (rs.next()) {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].read(rs, i + 1, row);
+            }
+            row++;
+        }
+        result.rowCount = row;
+        return result;
+    }
+
+    private static Column newColumn(String name, int sqlType, boolean signed) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+                return new IntColumn(name);
+            case Types.INTEGER:
+                // unsigned INT does not fit into a Java int
+                return signed ? new IntColumn(name) : new LongColumn(name);
+            case Types.BIGINT:
+                return signed ? new LongColumn(name) : new ObjectColumn(name);
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return new DoubleColumn(name);
+            default:
+                return new ObjectColumn(name);
+        }
+    }
+
+    public DBRowSchema getSchema() {
+        return schema;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public Column getColumn(int index) {
+        return columns[index];
+    }
+
+    public Column getColumn(String columnLabel) throws SQLException {
+        int index = schema.indexOf(columnLabel);
+        if (index < 0) {
+            throw new SQLException("ResultSet does not contain column name '" + columnLabel + "'");
+        }
+        return columns[index];
+    }
+
+    public IntColumn getIntColumn(String columnLabel) throws SQLException {
+        return getColumn(columnLabel, IntColumn.class);
+    }
+
+    public LongColumn getLongColumn(String columnLabel) throws SQLException {
+        return getColumn(columnLabel, LongColumn.class);
+    }
+
+    public DoubleColumn getDoubleColumn(String columnLabel) throws SQLException {
+        return getColumn(columnLabel, DoubleColumn.class);
+    }
+
+    public ObjectColumn getObjectColumn(String columnLabel) throws SQLException {
+        return getColumn(columnLabel, ObjectColumn.class);
+    }
+
+    private <T extends Column> T getColumn(String columnLabel, Class<T> type) throws SQLException {
+        Column column = getColumn(columnLabel);
+        if (!type.isInstance(column)) {
+            throw new SQLException("Column '" + columnLabel + "' is stored as " + column.getClass().getSimpleName()
+                    + ", not as " + type.getSimpleName());
+        }
+        return type.cast(column);
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Row-wise access to the columnar data. Call next() before reading the first row.
+     */
+    public class Cursor {
+        private int row = -1;
+
+        public boolean next() {
+            if (row + 1 >= rowCount) {
+                return false;
+            }
+            row++;
+            return true;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public boolean isNull(int column) {
+            return columns[column].isNull(row);
+        }
+
+        public int getInt(int column) {
+            return ((IntColumn) columns[column]).get(row);
+        }
+
+        public long getLong(int column) {
+            Column c = columns[column];
+            return c instanceof IntColumn ? ((IntColumn) c).get(row) : ((LongColumn) c).get(row);
+        }
+
+        public double getDouble(int column) {
+            Column c = columns[column];
+            if (c instanceof DoubleColumn) {
+                return ((DoubleColumn) c).get(row);
+            }
+            return getLong(column);
+        }
+
+        public Object getObject(int column) {
+            return columns[column].getObject(row);
+        }
+    }
+
+    public abstract static class Column {
+        private final String name;
+        private long[] nulls = new long[INITIAL_CAPACITY / 64];
+        int size;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        public int nullCount() {
+            int count = 0;
+            for (long word : nulls) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+
+        public abstract Object getObject(int row);
+
+        abstract void read(ResultSet rs, int columnIndex, int row) throws SQLException;
+
+        void setNull(int row, boolean isNull) {
+            if (row >>> 6 >= nulls.length) {
+                nulls = Arrays.copyOf(nulls, nulls.length * 2);
+            }
+            if (isNull) {
+                nulls[row >>> 6] |= 1L << row;
+            }
+            size = row + 1;
+        }
+
+        static int grow(int capacity, int row) {
+            return row < capacity ? capacity : Math.max(capacity * 2, row + 1);
+        }
+    }
+
+    public static class IntColumn extends Column {
+        private int[] values = new int[INITIAL_CAPACITY];
+
+        IntColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, int row) throws SQLException {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getInt(columnIndex);
+            setNull(row, rs.wasNull());
+        }
+
+        public int get(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getObject(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+
+        /**
+         * Returns the smallest non-NULL value or NULL when the column has no values.
+         */
+        public Integer min() {
+            boolean found = false;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (!isNull(i)) {
+                    found = true;
+                    min = Math.min(min, values[i]);
+                }
+            }
+            return found ? min : null;
+        }
+
+        public Integer max() {
+            boolean found = false;
+            int max = Integer.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (!isNull(i)) {
+                    found = true;
+                    max = Math.max(max, values[i]);
+                }
+            }
+            return found ? max : null;
+        }
+    }
+
+    public static class LongColumn extends Column {
+        private long[] values = new long[INITIAL_CAPACITY];
+
+        LongColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, int row) throws SQLException {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getLong(columnIndex);
+            setNull(row, rs.wasNull());
+        }
+
+        public long get(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getObject(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+
+        public Long min() {
+            boolean found = false;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (!isNull(i)) {
+                    found = true;
+                    min = Math.min(min, values[i]);
+                }
+            }
+            return found ? min : null;
+        }
+
+        public Long max() {
+            boolean found = false;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                if (!isNull(i)) {
+                    found = true;
+                    max = Math.max(max, values[i]);
+                }
+            }
+            return found ? max : null;
+        }
+    }
+
+    public static class DoubleColumn extends Column {
+        private double[] values = new double[INITIAL_CAPACITY];
+
+        DoubleColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, int row) throws SQLException {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getDouble(columnIndex);
+            setNull(row, rs.wasNull());
+        }
+
+        public double get(int row) {
+            return values[row];
+        }
+
+        @Override
+        public Object getObject(int row) {
+            return isNull(row) ? null : values[row];
+        }
+
+        public double sum() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+
+        public Double min() {
+            boolean found = false;
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                if (!isNull(i)) {
+                    found = true;
+                    min = Math.min(min, values[i]);
+                }
+            }
+            return found ? min : null;
+        }
+
+        public Double max() {
+            boolean found = false;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                if (!isNull(i)) {
+                    found = true;
+                    max = Math.max(max, values[i]);
+                }
+            }
+            return found ? max : null;
+        }
+    }
+
+    public static class ObjectColumn extends Column {
+        private Object[] values = new Object[INITIAL_CAPACITY];
+
+        ObjectColumn(String name) {
+            super(name);
+        }
+
+        @Override
+        void read(ResultSet rs, int columnIndex, int row) throws SQLException {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getObject(columnIndex);
+            setNull(row, values[row] == null);
+        }
+
+        @Override
+        public Object getObject(int row) {
+            return values[row];
+        }
+    }
+}
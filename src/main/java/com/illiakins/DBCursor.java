@@ -0,0 +1,121 @@
+package com.illiakins;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Forward-only cursor over a query result. Rows are read from the driver one at a time, so memory use does not
+ * depend on the size of the result.
+ * The cursor must be closed (or read to the end) to release the statement and, when the cursor owns it,
+ * return the connection to the pool.
+ */
+public class DBCursor implements Iterator<Map<String, Object>>, AutoCloseable {
+    private final Connection connection;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final DBRowSchema schema;
+    private Map<String, Object> nextRow;
+    private boolean closed;
+
+    DBCursor(Connection connection, Statement statement, ResultSet resultSet) throws SQLException {
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.schema = DBRowSchema.of(resultSet.getMetaData());
+    }
+
+    public DBRowSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns the next row or NULL when the result is exhausted. The cursor closes itself after the last row.
+     */
+    public Map<String, Object> fetch() throws SQLException {
+        if (nextRow != null) {
+            Map<String, Object> row = nextRow;
+            nextRow = null;
+            return row;
+        }
+        if (closed) {
+            return null;
+        }
+        try {
+            if (!resultSet.next()) {
+                close();
+                return null;
+            }
+            Object[] values = new Object[schema.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = resultSet.getObject(i + 1);
+            }
+            return new DBRow(schema, values);
+        } catch (SQLException e) {
+            try {
+                close();
+            } catch (SQLException closeEx) {
+                e.addSuppressed(closeEx);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextRow == null) {
+            try {
+                nextRow = fetch();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Unable to read the next row", e);
+            }
+        }
+        return nextRow != null;
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map<String, Object> row = nextRow;
+        nextRow = null;
+        return row;
+    }
+
+    /**
+     * Wraps the cursor into a sequential Stream. Closing the stream closes the cursor.
+     */
+    public Stream<Map<String, Object>> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(this::closeUnchecked);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            DB.close(connection, statement, resultSet);
+        }
+    }
+
+    private void closeUnchecked() {
+        try {
+            close();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
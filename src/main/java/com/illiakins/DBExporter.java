@@ -0,0 +1,559 @@
+package com.illiakins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a query result straight from the ResultSet to a channel or stream as CSV, TSV or NDJSON, without
+ * building the rows in memory first. Rows are encoded into one reused buffer which is written out whenever it
+ * fills up, so memory use does not depend on the size of the export.
+ * <p>
+ * Integers, booleans, dates, times and timestamps are encoded digit by digit from the typed getters, without
+ * intermediate Strings. Timestamps are written as ISO-8601 local date-times, binary columns as Base64.
+ * <ul>
+ * <li>CSV: RFC 4180, fields with a comma, quote or line break are quoted, NULL is an empty field</li>
+ * <li>TSV: tab, line break and backslash are escaped with a backslash, NULL is \N</li>
+ * <li>NDJSON: one JSON object per line keyed by the column labels, numbers and booleans unquoted</li>
+ * </ul>
+ * Use fetchSize(DB.STREAMING_FETCH_SIZE) on MySQL so the driver streams the rows as well.
+ */
+public class DBExporter {
+    public enum Format {
+        CSV, TSV, NDJSON
+    }
+
+    private static final byte[] DIGITS = "0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final Format format;
+    private boolean header = true;
+    private boolean gzip;
+    private int bufferSize = 64 * 1024;
+    private int fetchSize;
+
+    public DBExporter(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Writes the column labels as the first line of CSV and TSV exports, on by default.
+     */
+    public DBExporter header(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    public DBExporter gzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public DBExporter bufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public DBExporter fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Runs the query and exports its result. The stream is flushed, not closed.
+     * @return number of exported rows
+     */
+    public long export(String dataSourceName, String sqlQuery, List<Object> params, OutputStream out)
+            throws SQLException, IOException {
+        long rows = export(dataSourceName, sqlQuery, params, Channels.newChannel(out));
+        out.flush();
+        return rows;
+    }
+
+    /**
+     * Runs the query and exports its result. The channel is not closed.
+     * @return number of exported rows
+     */
+    public long export(String dataSourceName, String sqlQuery, List<Object> params, WritableByteChannel channel)
+            throws SQLException, IOException {
+        Connection connection = DB.getConnection(dataSourceName);
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(DB.getMetrics(), connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (fetchSize != 0) {
+                statement.setFetchSize(fetchSize);
+            }
+            int parameterIndex = 1;
+            for (Object param : params) {
+                statement.setObject(parameterIndex++, param);
+            }
+            resultSet = statement.executeQuery();
+            timer.executed();
+            long rows = export(resultSet, channel);
+            timer.finish(rows);
+            return rows;
+        } catch (SQLException | IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            DB.close(connection, statement, resultSet);
+        }
+    }
+
+    /**
+     * Exports the remaining rows of the ResultSet, which is not closed.
+     * @return number of exported rows
+     */
+    public long export(ResultSet resultSet, WritableByteChannel channel) throws SQLException, IOException {
+        GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(Channels.newOutputStream(channel), bufferSize) : null;
+        Encoder encoder = new Encoder(gzipStream == null ? channel : Channels.newChannel(gzipStream), bufferSize);
+        ResultSetMetaData md = resultSet.getMetaData();
+        int columns = md.getColumnCount();
+        int[] kinds = new int[columns + 1];
+        byte[][] labels = new byte[columns + 1][];
+        for (int i = 1; i <= columns; i++) {
+            kinds[i] = kindOf(md.getColumnType(i), md.isSigned(i));
+            labels[i] = jsonKey(md.getColumnLabel(i));
+        }
+        if (header && format != Format.NDJSON) {
+            for (int i = 1; i <= columns; i++) {
+                if (i > 1) {
+                    encoder.put(format == Format.CSV ? (byte) ',' : (byte) '\t');
+                }
+                writeText(encoder, md.getColumnLabel(i));
+            }
+            encoder.put((byte) '\n');
+        }
+        long rows = 0;
+        while (resultSet.next()) {
+            if (format == Format.NDJSON) {
+                encoder.put((byte) '{');
+            }
+            for (int i = 1; i <= columns; i++) {
+                if (format == Format.NDJSON) {
+                    if (i > 1) {
+                        encoder.put((byte) ',');
+                    }
+                    encoder.put(labels[i]);
+                } else if (i > 1) {
+                    encoder.put(format == Format.CSV ? (byte) ',' : (byte) '\t');
+                }
+                writeValue(encoder, resultSet, i, kinds[i]);
+            }
+            if (format == Format.NDJSON) {
+                encoder.put((byte) '}');
+            }
+            encoder.put((byte) '\n');
+            rows++;
+        }
+        encoder.flush();
+        if (gzipStream != null) {
+            gzipStream.finish();
+            gzipStream.flush();
+        }
+        return rows;
+    }
+
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int DECIMAL = 3;
+    private static final int BOOLEAN = 4;
+    private static final int DATE = 5;
+    private static final int TIME = 6;
+    private static final int TIMESTAMP = 7;
+    private static final int BINARY = 8;
+    private static final int TEXT = 9;
+
+    private static int kindOf(int sqlType, boolean signed) {
+        switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return LONG;
+            case Types.BIGINT:
+                return signed ? LONG : DECIMAL;
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BINARY;
+            default:
+                return TEXT;
+        }
+    }
+
+    private void writeValue(Encoder encoder, ResultSet resultSet, int column, int kind)
+            throws SQLException, IOException {
+        switch (kind) {
+            case LONG: {
+                long value = resultSet.getLong(column);
+                if (resultSet.wasNull()) {
+                    writeNull(encoder);
+                } else {
+                    encoder.putLong(value);
+                }
+                return;
+            }
+            case DOUBLE: {
+                double value = resultSet.getDouble(column);
+                if (resultSet.wasNull() || format == Format.NDJSON && (Double.isNaN(value)
+                        || Double.isInfinite(value))) {
+                    writeNull(encoder);
+                } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                    encoder.putLong((long) value);
+                } else {
+                    encoder.putAscii(Double.toString(value));
+                }
+                return;
+            }
+            case DECIMAL: {
+                BigDecimal value = resultSet.getBigDecimal(column);
+                if (value == null) {
+                    writeNull(encoder);
+                } else {
+                    encoder.putAscii(value.toPlainString());
+                }
+                return;
+            }
+            case BOOLEAN: {
+                boolean value = resultSet.getBoolean(column);
+                if (resultSet.wasNull()) {
+                    writeNull(encoder);
+                } else if (format == Format.NDJSON) {
+                    encoder.putAscii(value ? "true" : "false");
+                } else {
+                    encoder.put(value ? (byte) '1' : (byte) '0');
+                }
+                return;
+            }
+            case DATE: {
+                Date value = resultSet.getDate(column);
+                if (value == null) {
+                    writeNull(encoder);
+                } else {
+                    LocalDate date = value.toLocalDate();
+                    quoteJson(encoder);
+                    putDate(encoder, date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+                    quoteJson(encoder);
+                }
+                return;
+            }
+            case TIME: {
+                Time value = resultSet.getTime(column);
+                if (value == null) {
+                    writeNull(encoder);
+                } else {
+                    LocalTime time = value.toLocalTime();
+                    quoteJson(encoder);
+                    putTime(encoder, time.getHour(), time.getMinute(), time.getSecond(), 0);
+                    quoteJson(encoder);
+                }
+                return;
+            }
+            case TIMESTAMP: {
+                Timestamp value = resultSet.getTimestamp(column);
+                if (value == null) {
+                    writeNull(encoder);
+                } else {
+                    LocalDateTime dateTime = value.toLocalDateTime();
+                    quoteJson(encoder);
+                    putDate(encoder, dateTime.getYear(), dateTime.getMonthValue(), dateTime.getDayOfMonth());
+                    encoder.put((byte) 'T');
+                    putTime(encoder, dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond(),
+                            dateTime.getNano());
+                    quoteJson(encoder);
+                }
+                return;
+            }
+            case BINARY: {
+                byte[] value = resultSet.getBytes(column);
+                if (value == null) {
+                    writeNull(encoder);
+                } else {
+                    quoteJson(encoder);
+                    encoder.put(Base64.getEncoder().encode(value));
+                    quoteJson(encoder);
+                }
+                return;
+            }
+            default: {
+                String value = resultSet.getString(column);
+                if (value == null) {
+                    writeNull(encoder);
+                } else {
+                    writeText(encoder, value);
+                }
+            }
+        }
+    }
+
+    private void quoteJson(Encoder encoder) throws IOException {
+        if (format == Format.NDJSON) {
+            encoder.put((byte) '"');
+        }
+    }
+
+    private void writeNull(Encoder encoder) throws IOException {
+        if (format == Format.NDJSON) {
+            encoder.putAscii("null");
+        } else if (format == Format.TSV) {
+            encoder.putAscii("\\N");
+        }
+    }
+
+    private void writeText(Encoder encoder, String value) throws IOException {
+        switch (format) {
+            case CSV:
+                if (needsCsvQuotes(value)) {
+                    encoder.put((byte) '"');
+                    encoder.putUtf8(value, Format.CSV);
+                    encoder.put((byte) '"');
+                } else {
+                    encoder.putUtf8(value, null);
+                }
+                return;
+            case TSV:
+                encoder.putUtf8(value, Format.TSV);
+                return;
+            default:
+                encoder.put((byte) '"');
+                encoder.putUtf8(value, Format.NDJSON);
+                encoder.put((byte) '"');
+        }
+    }
+
+    private static boolean needsCsvQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] jsonKey(String label) {
+        StringBuilder builder = new StringBuilder(label.length() + 3).append('"');
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+        return builder.append("\":").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putDate(Encoder encoder, int year, int month, int day) throws IOException {
+        encoder.putPadded(year, 4);
+        encoder.put((byte) '-');
+        encoder.putPadded(month, 2);
+        encoder.put((byte) '-');
+        encoder.putPadded(day, 2);
+    }
+
+    private static void putTime(Encoder encoder, int hour, int minute, int second, int nanos) throws IOException {
+        encoder.putPadded(hour, 2);
+        encoder.put((byte) ':');
+        encoder.putPadded(minute, 2);
+        encoder.put((byte) ':');
+        encoder.putPadded(second, 2);
+        if (nanos > 0) {
+            int digits = 9;
+            while (nanos % 10 == 0) {
+                nanos /= 10;
+                digits--;
+            }
+            encoder.put((byte) '.');
+            encoder.putPadded(nanos, digits);
+        }
+    }
+
+    /**
+     * UTF-8 encoder over a reused buffer, written to the channel whenever it fills up.
+     */
+    private static final class Encoder {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer;
+        private final byte[] digits = new byte[20];
+
+        Encoder(WritableByteChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 64));
+        }
+
+        void put(byte b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(b);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void putAscii(String value) throws IOException {
+            for (int i = 0; i < value.length(); i++) {
+                put((byte) value.charAt(i));
+            }
+        }
+
+        void putLong(long value) throws IOException {
+            if (value == Long.MIN_VALUE) {
+                putAscii("-9223372036854775808");
+                return;
+            }
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+            int position = digits.length;
+            do {
+                digits[--position] = DIGITS[(int) (value % 10)];
+                value /= 10;
+            } while (value > 0);
+            while (position < digits.length) {
+                put(digits[position++]);
+            }
+        }
+
+        void putPadded(int value, int width) throws IOException {
+            int position = digits.length;
+            for (int i = 0; i < width || value > 0; i++) {
+                digits[--position] = DIGITS[value % 10];
+                value /= 10;
+            }
+            while (position < digits.length) {
+                put(digits[position++]);
+            }
+        }
+
+        /**
+         * @param escape format whose escaping applies, NULL for none
+         */
+        void putUtf8(String value, Format escape) throws IOException {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (escape != null && escape(c, escape)) {
+                    continue;
+                }
+                if (c < 0x80) {
+                    put((byte) c);
+                } else if (c < 0x800) {
+                    put((byte) (0xC0 | c >> 6));
+                    put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    put((byte) (0xF0 | codePoint >> 18));
+                    put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                    put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                    put((byte) (0x80 | codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    put((byte) '?');
+                } else {
+                    put((byte) (0xE0 | c >> 12));
+                    put((byte) (0x80 | c >> 6 & 0x3F));
+                    put((byte) (0x80 | c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * Writes the escaped form of the character if the format escapes it.
+         */
+        private boolean escape(char c, Format escape) throws IOException {
+            switch (escape) {
+                case CSV:
+                    if (c == '"') {
+                        put((byte) '"');
+                        put((byte) '"');
+                        return true;
+                    }
+                    return false;
+                case TSV:
+                    if (c == '\t' || c == '\n' || c == '\r' || c == '\\') {
+                        put((byte) '\\');
+                        put((byte) (c == '\t' ? 't' : c == '\n' ? 'n' : c == '\r' ? 'r' : '\\'));
+                        return true;
+                    }
+                    return false;
+                default:
+                    if (c == '"' || c == '\\') {
+                        put((byte) '\\');
+                        put((byte) c);
+                        return true;
+                    }
+                    if (c == '\n' || c == '\r' || c == '\t') {
+                        put((byte) '\\');
+                        put((byte) (c == '\n' ? 'n' : c == '\r' ? 'r' : 't'));
+                        return true;
+                    }
+                    if (c < 0x20) {
+                        put((byte) '\\');
+                        put((byte) 'u');
+                        put((byte) '0');
+                        put((byte) '0');
+                        put(HEX[c >> 4]);
+                        put(HEX[c & 0xF]);
+                        return true;
+                    }
+                    return false;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
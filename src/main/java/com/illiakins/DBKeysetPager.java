@@ -0,0 +1,320 @@
+package com.illiakins;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pages through a query by its unique key instead of LIMIT/OFFSET, so every page costs the same however deep it is.
+ * <pre>
+ * DBKeysetPager pager = new DBKeysetPager("default", "SELECT * FROM orders WHERE status = ?", 1000,
+ *         "created_at", "id").params(DB.varargsToList("NEW"));
+ * List&lt;HashMap&lt;String, Object&gt;&gt; page;
+ * while ((page = pager.fetch()) != null) {
+ *     process(page);
+ *     saveCheckpoint(pager.getLastKey());
+ * }
+ * </pre>
+ * Each page continues after the last key of the previous one: the composite key comparison, expanded to
+ * (k1 &gt; ?) OR (k1 = ? AND k2 &gt; ?) ..., is added to the WHERE clause of the base query, which MySQL can
+ * resolve with a range scan of an index on the key columns. The key columns have to be selected by the base query,
+ * be unique together and not NULL, and be usable in its WHERE clause: qualify them as "o.id" if a join makes them
+ * ambiguous, the rows are read by the name after the dot. resumeFrom() continues after a saved key.
+ * <p>
+ * A base query with a top-level UNION, HAVING, ORDER BY, LIMIT or locking clause is wrapped as a derived table
+ * instead and the key columns refer to its labels. MySQL materializes such a derived table on every page, so keep
+ * these queries out of large scans.
+ */
+public class DBKeysetPager implements Iterator<List<HashMap<String, Object>>> {
+    private static final Pattern WORD = Pattern.compile("\\b[A-Za-z_]+\\b");
+    private static final Set<String> WRAPPING_KEYWORDS =
+            new HashSet<>(Arrays.asList("UNION", "HAVING", "ORDER", "LIMIT", "FOR", "LOCK"));
+
+    private final String dataSourceName;
+    private final String baseQuery;
+    private final int pageSize;
+    private final String[] keyColumns;
+    private final String[] keyLabels;
+    /** end of the WHERE clause of the base query, where the key predicate goes, -1 if the query is wrapped */
+    private final int predicateAt;
+    /** start of the WHERE condition of the base query, -1 if it has none */
+    private final int whereAt;
+    private List<Object> params = new ArrayList<>();
+    private boolean descending;
+    private Object[] lastKey;
+    private boolean done;
+    private List<HashMap<String, Object>> nextPage;
+
+    public DBKeysetPager(String dataSourceName, String baseQuery, int pageSize, String... keyColumns) {
+        if (keyColumns.length == 0) {
+            throw new IllegalArgumentException("At least one key column is needed");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.dataSourceName = dataSourceName;
+        this.baseQuery = baseQuery.trim();
+        this.pageSize = pageSize;
+        this.keyColumns = keyColumns.clone();
+        this.keyLabels = new String[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            String label = keyColumns[i].substring(keyColumns[i].lastIndexOf('.') + 1);
+            keyLabels[i] = label.replace("`", "");
+        }
+        int where = -1;
+        int end = this.baseQuery.length();
+        boolean wrap = false;
+        Matcher word = WORD.matcher(mask(this.baseQuery, true));
+        while (word.find()) {
+            String keyword = word.group().toUpperCase(Locale.ROOT);
+            if (keyword.equals("WHERE") && where < 0) {
+                where = word.end();
+            } else if (keyword.equals("GROUP") && end == this.baseQuery.length()) {
+                end = word.start();
+            } else if (WRAPPING_KEYWORDS.contains(keyword)) {
+                wrap = true;
+            }
+        }
+        this.predicateAt = wrap ? -1 : end;
+        this.whereAt = where;
+    }
+
+    public DBKeysetPager params(List<Object> queryParams) {
+        this.params = queryParams;
+        return this;
+    }
+
+    /**
+     * Pages in descending key order.
+     */
+    public DBKeysetPager descending(boolean descending) {
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Continues after the given key, for example a checkpoint saved from getLastKey().
+     */
+    public DBKeysetPager resumeFrom(Object... key) {
+        if (key != null && key.length != keyColumns.length) {
+            throw new IllegalArgumentException("Expected " + keyColumns.length + " key values but got " + key.length);
+        }
+        lastKey = key == null ? null : key.clone();
+        done = false;
+        nextPage = null;
+        return this;
+    }
+
+    /**
+     * Key of the last row returned so far, NULL before the first page.
+     */
+    public Object[] getLastKey() {
+        return lastKey == null ? null : lastKey.clone();
+    }
+
+    /**
+     * Returns the next page, NULL after the last one.
+     */
+    public List<HashMap<String, Object>> fetch() throws SQLException {
+        if (nextPage != null) {
+            List<HashMap<String, Object>> page = nextPage;
+            nextPage = null;
+            return page;
+        }
+        if (done) {
+            return null;
+        }
+        List<Object> pageParams = new ArrayList<>(params);
+        String sqlQuery = buildSql(pageParams);
+        List<HashMap<String, Object>> page = DB.executeQuery(dataSourceName, sqlQuery, pageParams);
+        if (page.size() < pageSize) {
+            done = true;
+        }
+        if (page.isEmpty()) {
+            return null;
+        }
+        lastKey = keyOf(page.get(page.size() - 1));
+        return page;
+    }
+
+    /**
+     * Returns the next page wrapped in DBResultParser, NULL after the last one.
+     */
+    public List<DBResultParser> fetchParsed() throws SQLException {
+        List<HashMap<String, Object>> page = fetch();
+        return page == null ? null : DBResultParser.getResultSet(page);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPage == null && !done) {
+            try {
+                nextPage = fetch();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Unable to fetch the next page", e);
+            }
+        }
+        return nextPage != null;
+    }
+
+    @Override
+    public List<HashMap<String, Object>> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<HashMap<String, Object>> page = nextPage;
+        nextPage = null;
+        return page;
+    }
+
+    String buildSql(List<Object> pageParams) {
+        StringBuilder builder = new StringBuilder();
+        String[] columns;
+        if (predicateAt < 0) {
+            columns = keyLabels;
+            builder.append("SELECT * FROM (").append(baseQuery).append(") keyset_base");
+            if (lastKey != null) {
+                builder.append(" WHERE ");
+                appendPredicate(builder, columns, pageParams);
+            }
+        } else {
+            columns = keyColumns;
+            String head = baseQuery.substring(0, predicateAt).trim();
+            String tail = baseQuery.substring(predicateAt).trim();
+            // the key values are bound after the placeholders of the WHERE clause and before those of GROUP BY
+            List<Object> headParams = pageParams.subList(0, countPlaceholders(head));
+            List<Object> tailParams = new ArrayList<>(pageParams.subList(headParams.size(), pageParams.size()));
+            pageParams.subList(headParams.size(), pageParams.size()).clear();
+            if (lastKey == null) {
+                builder.append(head);
+            } else if (whereAt >= 0) {
+                builder.append(baseQuery, 0, whereAt).append(" (")
+                        .append(baseQuery.substring(whereAt, predicateAt).trim()).append(") AND (");
+                appendPredicate(builder, columns, pageParams);
+                builder.append(')');
+            } else {
+                builder.append(head).append(" WHERE ");
+                appendPredicate(builder, columns, pageParams);
+            }
+            if (!tail.isEmpty()) {
+                builder.append(' ').append(tail);
+            }
+            pageParams.addAll(tailParams);
+        }
+        builder.append(" ORDER BY ");
+        for (int i = 0; i < columns.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(columns[i]).append(descending ? " DESC" : "");
+        }
+        builder.append(" LIMIT ?");
+        pageParams.add(pageSize);
+        return builder.toString();
+    }
+
+    private void appendPredicate(StringBuilder builder, String[] columns, List<Object> pageParams) {
+        String comparison = descending ? " < ?" : " > ?";
+        for (int i = 0; i < columns.length; i++) {
+            builder.append(i == 0 ? "(" : " OR (");
+            for (int j = 0; j < i; j++) {
+                builder.append(columns[j]).append(" = ? AND ");
+                pageParams.add(lastKey[j]);
+            }
+            builder.append(columns[i]).append(comparison).append(')');
+            pageParams.add(lastKey[i]);
+        }
+    }
+
+    private Object[] keyOf(Map<String, Object> row) throws SQLException {
+        Object[] key = new Object[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            key[i] = columnValue(row, keyLabels[i]);
+            if (key[i] == null) {
+                throw new SQLException("Key column " + keyLabels[i] + " is NULL in row " + row);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Matches the label case-insensitively, databases differ in the case of unquoted labels.
+     */
+    private static Object columnValue(Map<String, Object> row, String column) throws SQLException {
+        if (row.containsKey(column)) {
+            return row.get(column);
+        }
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(column)) {
+                return entry.getValue();
+            }
+        }
+        throw new SQLException("ResultSet does not contain the key column " + column);
+    }
+
+    private static int countPlaceholders(String sql) {
+        String masked = mask(sql, false);
+        int count = 0;
+        for (int i = 0; i < masked.length(); i++) {
+            if (masked.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Blanks out string literals, quoted names and comments, and with nested also everything in parentheses, so the
+     * words left are the clauses of the statement itself.
+     */
+    private static String mask(String sql, boolean nested) {
+        StringBuilder masked = new StringBuilder(sql.length());
+        int depth = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            int end = -1;
+            if (c == '\'' || c == '"' || c == '`') {
+                end = i + 1;
+                while (end < sql.length() && sql.charAt(end) != c) {
+                    end += sql.charAt(end) == '\\' && c != '`' ? 2 : 1;
+                }
+                end = Math.min(end + 1, sql.length());
+            } else if (c == '#' || sql.startsWith("--", i)) {
+                end = sql.indexOf('\n', i);
+                end = end < 0 ? sql.length() : end;
+            } else if (sql.startsWith("/*", i)) {
+                end = sql.indexOf("*/", i + 2);
+                end = end < 0 ? sql.length() : end + 2;
+            }
+            if (end > i) {
+                while (i < end) {
+                    masked.append(' ');
+                    i++;
+                }
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            }
+            masked.append(nested && depth > 0 ? ' ' : c);
+            if (c == ')') {
+                depth--;
+            }
+            i++;
+        }
+        return masked.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DBKeysetPager{" + dataSourceName + ", lastKey=" + Arrays.toString(lastKey) + "}";
+    }
+}
@@ -0,0 +1,343 @@
+package com.illiakins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Statement and pool checkout instrumentation for DB, enabled with DB.setMetrics().
+ * <p>
+ * Checkout latency is recorded per data source. Execute latency (prepare, bind and execute), fetch latency
+ * (reading the result) and rows are recorded per data source and normalised SQL fingerprint, in lock-free
+ * {@link DBHistogram}s. Statements are attributed to the data source their connection was checked out from, on
+ * whichever thread they run; connections which were not checked out through DB count as "unknown".
+ * <p>
+ * Statements slower than the slow-query threshold are logged as warnings through the DB logger.
+ */
+public class DBMetrics implements DBMetricsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(DB.class);
+    private static final int MAX_CACHED_FINGERPRINTS = 10_000;
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern PLACEHOLDER_ROWS = Pattern.compile("(\\(\\?\\))(?:\\s*,\\s*\\(\\?\\))+");
+
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+    private final Map<String, DBHistogram> checkouts = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> checkoutErrors = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, StatementStats>> statements = new ConcurrentHashMap<>();
+    private final List<DBMetricsListener> listeners = new CopyOnWriteArrayList<>();
+    /** data source of each checked out connection, weak so a connection which is never released does not leak */
+    private final Map<Connection, String> connectionSources = Collections.synchronizedMap(new WeakHashMap<>());
+    private volatile long slowQueryNanos;
+
+    /**
+     * @param slowQueryThresholdMillis statements taking longer are logged, 0 to disable the slow-query log
+     */
+    public DBMetrics(long slowQueryThresholdMillis) {
+        setSlowQueryThresholdMillis(slowQueryThresholdMillis);
+    }
+
+    public void addListener(DBMetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DBMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers the metrics on the platform MBean server as com.illiakins:type=DBMetrics.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName());
+        } catch (JMException e) {
+            LOG.warn("Unable to register DB metrics MBean", e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister DB metrics MBean", e);
+        }
+    }
+
+    private static ObjectName objectName() throws JMException {
+        return new ObjectName("com.illiakins:type=DBMetrics");
+    }
+
+    void recordCheckout(String dataSourceName, Connection connection, long nanos, boolean failed) {
+        if (connection != null) {
+            connectionSources.put(connection, dataSourceName);
+        }
+        checkouts.computeIfAbsent(dataSourceName, name -> new DBHistogram()).record(nanos);
+        if (failed) {
+            checkoutErrors.computeIfAbsent(dataSourceName, name -> new LongAdder()).increment();
+        }
+        for (DBMetricsListener listener : listeners) {
+            listener.onCheckout(dataSourceName, nanos, failed);
+        }
+    }
+
+    void recordRelease(Connection connection) {
+        connectionSources.remove(connection);
+    }
+
+    private String dataSourceOf(Connection connection) {
+        String dataSourceName = connection == null ? null : connectionSources.get(connection);
+        return dataSourceName == null ? "unknown" : dataSourceName;
+    }
+
+    void recordStatement(String dataSourceName, String sqlQuery, long executeNanos, long fetchNanos, long rows,
+            Throwable error) {
+        String fingerprint = fingerprint(sqlQuery);
+        StatementStats stats = statements.computeIfAbsent(dataSourceName, name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(fingerprint, fp -> new StatementStats());
+        stats.execute.record(executeNanos);
+        stats.fetch.record(fetchNanos);
+        stats.total.record(executeNanos + fetchNanos);
+        stats.rows.record(rows);
+        if (error != null) {
+            stats.errors.increment();
+        }
+        long slow = slowQueryNanos;
+        if (slow > 0 && executeNanos + fetchNanos >= slow) {
+            LOG.warn("Slow query on `{}` took {} ms (execute {} ms, fetch {} ms, {} rows): {}", dataSourceName,
+                    (executeNanos + fetchNanos) / 1_000_000, executeNanos / 1_000_000, fetchNanos / 1_000_000, rows,
+                    sqlQuery);
+        }
+        for (DBMetricsListener listener : listeners) {
+            listener.onStatement(dataSourceName, fingerprint, executeNanos, fetchNanos, rows, error);
+        }
+    }
+
+    /**
+     * Normalises the SQL: literals become ?, whitespace is collapsed, IN lists and multi-row VALUES
+     * collapse to a single placeholder group, so statements which differ only in values share a fingerprint.
+     */
+    public String fingerprint(String sqlQuery) {
+        String fingerprint = fingerprints.get(sqlQuery);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        StringBuilder builder = new StringBuilder(sqlQuery.length());
+        int length = sqlQuery.length();
+        int i = 0;
+        while (i < length) {
+            char c = sqlQuery.charAt(i);
+            if (c == '\'' || c == '"') {
+                i++;
+                while (i < length && (sqlQuery.charAt(i) != c || i + 1 < length && sqlQuery.charAt(i + 1) == c)) {
+                    i += sqlQuery.charAt(i) == '\\' || sqlQuery.charAt(i) == c ? 2 : 1;
+                }
+                i++;
+                builder.append('?');
+            } else if (Character.isDigit(c) && (builder.length() == 0
+                    || !Character.isLetterOrDigit(builder.charAt(builder.length() - 1))
+                    && builder.charAt(builder.length() - 1) != '_')) {
+                while (i < length && (Character.isLetterOrDigit(sqlQuery.charAt(i)) || sqlQuery.charAt(i) == '.')) {
+                    i++;
+                }
+                builder.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < length && Character.isWhitespace(sqlQuery.charAt(i))) {
+                    i++;
+                }
+                builder.append(' ');
+            } else {
+                builder.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+        fingerprint = PLACEHOLDER_LIST.matcher(builder.toString().trim()).replaceAll("(?)");
+        fingerprint = PLACEHOLDER_ROWS.matcher(fingerprint).replaceAll("$1");
+        if (fingerprints.size() < MAX_CACHED_FINGERPRINTS) {
+            fingerprints.put(sqlQuery, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    public DBHistogram getCheckoutHistogram(String dataSourceName) {
+        return checkouts.get(dataSourceName);
+    }
+
+    /**
+     * Returns the statistics of a statement fingerprint or NULL if it was never recorded.
+     */
+    public StatementStats getStatementStats(String dataSourceName, String fingerprint) {
+        Map<String, StatementStats> byFingerprint = statements.get(dataSourceName);
+        return byFingerprint == null ? null : byFingerprint.get(fingerprint);
+    }
+
+    @Override
+    public Map<String, Long> getStatementCounts() {
+        return collectLong(stats -> stats.total.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getStatementErrors() {
+        return collectLong(stats -> stats.errors.sum());
+    }
+
+    @Override
+    public Map<String, Double> getStatementP50Millis() {
+        return collectDouble(stats -> stats.total.getPercentile(0.5) / 1e6);
+    }
+
+    @Override
+    public Map<String, Double> getStatementP99Millis() {
+        return collectDouble(stats -> stats.total.getPercentile(0.99) / 1e6);
+    }
+
+    @Override
+    public Map<String, Double> getStatementP999Millis() {
+        return collectDouble(stats -> stats.total.getPercentile(0.999) / 1e6);
+    }
+
+    @Override
+    public Map<String, Long> getRowsReturned() {
+        return collectLong(stats -> stats.rows.getSum());
+    }
+
+    @Override
+    public Map<String, Double> getCheckoutP99Millis() {
+        Map<String, Double> result = new TreeMap<>();
+        checkouts.forEach((name, histogram) -> result.put(name, histogram.getPercentile(0.99) / 1e6));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCheckoutErrors() {
+        Map<String, Long> result = new TreeMap<>();
+        checkoutErrors.forEach((name, errors) -> result.put(name, errors.sum()));
+        return result;
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return slowQueryNanos / 1_000_000;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(long millis) {
+        slowQueryNanos = millis * 1_000_000;
+    }
+
+    @Override
+    public void reset() {
+        checkouts.clear();
+        checkoutErrors.clear();
+        statements.clear();
+    }
+
+    private Map<String, Long> collectLong(ToLongFunction<StatementStats> value) {
+        Map<String, Long> result = new TreeMap<>();
+        statements.forEach((name, byFingerprint) -> byFingerprint.forEach(
+                (fingerprint, stats) -> result.put(name + " | " + fingerprint, value.applyAsLong(stats))));
+        return result;
+    }
+
+    private Map<String, Double> collectDouble(ToDoubleFunction<StatementStats> value) {
+        Map<String, Double> result = new TreeMap<>();
+        statements.forEach((name, byFingerprint) -> byFingerprint.forEach(
+                (fingerprint, stats) -> result.put(name + " | " + fingerprint, value.applyAsDouble(stats))));
+        return result;
+    }
+
+    public static class StatementStats {
+        private final DBHistogram execute = new DBHistogram();
+        private final DBHistogram fetch = new DBHistogram();
+        private final DBHistogram total = new DBHistogram();
+        private final DBHistogram rows = new DBHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        public DBHistogram getExecute() {
+            return execute;
+        }
+
+        public DBHistogram getFetch() {
+            return fetch;
+        }
+
+        public DBHistogram getTotal() {
+            return total;
+        }
+
+        public DBHistogram getRows() {
+            return rows;
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * Measures one statement. Obtained from start(), a no-op when metrics are disabled.
+     */
+    static final class Timer {
+        private static final Timer NOOP = new Timer(null, null, null);
+
+        private final DBMetrics metrics;
+        private final String dataSourceName;
+        private final String sqlQuery;
+        private final long start;
+        private long executed;
+
+        private Timer(DBMetrics metrics, String dataSourceName, String sqlQuery) {
+            this.metrics = metrics;
+            this.dataSourceName = dataSourceName;
+            this.sqlQuery = sqlQuery;
+            this.start = metrics == null ? 0 : System.nanoTime();
+        }
+
+        static Timer start(DBMetrics metrics, Connection connection, String sqlQuery) {
+            if (metrics == null) {
+                return NOOP;
+            }
+            return new Timer(metrics, metrics.dataSourceOf(connection), sqlQuery);
+        }
+
+        /**
+         * Marks the end of the execute phase, the rest until finish() is the fetch phase.
+         */
+        void executed() {
+            if (metrics != null) {
+                executed = System.nanoTime();
+            }
+        }
+
+        void finish(long rows) {
+            stop(rows, null);
+        }
+
+        void fail(Throwable error) {
+            stop(0, error);
+        }
+
+        private void stop(long rows, Throwable error) {
+            if (metrics == null) {
+                return;
+            }
+            long end = System.nanoTime();
+            long executeEnd = executed == 0 ? end : executed;
+            metrics.recordStatement(dataSourceName, sqlQuery, executeEnd - start, end - executeEnd, rows, error);
+        }
+    }
+}
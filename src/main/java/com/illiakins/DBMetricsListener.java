@@ -0,0 +1,18 @@
+package com.illiakins;
+
+/**
+ * Receives every measurement recorded by {@link DBMetrics}, for example to forward it to a metrics system.
+ * Called on the thread which ran the statement, implementations must be fast and thread-safe.
+ */
+public interface DBMetricsListener {
+    default void onCheckout(String dataSourceName, long nanos, boolean failed) {
+    }
+
+    /**
+     * @param rows rows returned by a query, rows affected by an update or rows sent by a batch
+     * @param error the failure or NULL
+     */
+    default void onStatement(String dataSourceName, String fingerprint, long executeNanos, long fetchNanos, long rows,
+            Throwable error) {
+    }
+}
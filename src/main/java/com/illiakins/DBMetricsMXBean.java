@@ -0,0 +1,30 @@
+package com.illiakins;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DBMetrics}. Statement attributes are keyed by "dataSourceName | SQL fingerprint".
+ */
+public interface DBMetricsMXBean {
+    Map<String, Long> getStatementCounts();
+
+    Map<String, Long> getStatementErrors();
+
+    Map<String, Double> getStatementP50Millis();
+
+    Map<String, Double> getStatementP99Millis();
+
+    Map<String, Double> getStatementP999Millis();
+
+    Map<String, Long> getRowsReturned();
+
+    Map<String, Double> getCheckoutP99Millis();
+
+    Map<String, Long> getCheckoutErrors();
+
+    long getSlowQueryThresholdMillis();
+
+    void setSlowQueryThresholdMillis(long millis);
+
+    void reset();
+}
@@ -0,0 +1,152 @@
+package com.illiakins;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Runs several independent queries on one connection and returns one result per query, in order:
+ * <pre>
+ * List&lt;DBResult&gt; results = new DBMultiQuery()
+ *         .add("SELECT * FROM user WHERE id = ?", userId)
+ *         .add("SELECT * FROM account WHERE user_id = ?", userId)
+ *         .execute("default");
+ * </pre>
+ * In PIPELINED mode the queries are sent as one multi-statement request and the results are read with
+ * getMoreResults(), one round trip for all of them. MySQL Connector/J needs allowMultiQueries=true in the
+ * JDBC URL or the data source properties for that. SEQUENTIAL runs them one after another on the same connection,
+ * which works with every driver. AUTO, the default, pipelines when the data source allows multiple queries.
+ * Only SELECT statements are accepted, a pipelined write would already have run before its missing result set
+ * could be noticed.
+ */
+public class DBMultiQuery {
+    public enum Mode {
+        AUTO, PIPELINED, SEQUENTIAL
+    }
+
+    private static final Pattern SELECT = Pattern.compile("(?i)select\\b");
+
+    private final List<String> queries = new ArrayList<>();
+    private final List<List<Object>> params = new ArrayList<>();
+    private Mode mode = Mode.AUTO;
+
+    /**
+     * @throws IllegalArgumentException if the statement is not a SELECT
+     */
+    public DBMultiQuery add(String sqlQuery, List<Object> queryParams) {
+        String trimmed = sqlQuery.trim();
+        while (trimmed.endsWith(";")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+        }
+        if (!SELECT.matcher(trimmed).lookingAt()) {
+            throw new IllegalArgumentException("Only SELECT statements can be combined: " + trimmed);
+        }
+        queries.add(trimmed);
+        params.add(queryParams == null ? Collections.emptyList() : queryParams);
+        return this;
+    }
+
+    public DBMultiQuery add(String sqlQuery, Object... parameters) {
+        return add(sqlQuery, DB.varargsToList(parameters));
+    }
+
+    public DBMultiQuery mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int size() {
+        return queries.size();
+    }
+
+    public List<DBResult> execute(String dataSourceName) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            boolean pipelined = mode == Mode.PIPELINED || mode == Mode.AUTO && allowsMultiQueries(dataSourceName);
+            return pipelined ? executePipelined(connection) : executeSequential(connection);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    /**
+     * Keeps the connection open. AUTO runs sequentially, the data source of the connection is not known here.
+     */
+    public List<DBResult> execute(Connection connection) throws SQLException {
+        return mode == Mode.PIPELINED ? executePipelined(connection) : executeSequential(connection);
+    }
+
+    static boolean allowsMultiQueries(String dataSourceName) {
+        HikariConfig config = DB.getConfigMap().get(dataSourceName);
+        if (config == null) {
+            return false;
+        }
+        String jdbcUrl = config.getJdbcUrl();
+        if (jdbcUrl != null && jdbcUrl.toLowerCase(Locale.ROOT).contains("allowmultiqueries=true")) {
+            return true;
+        }
+        Object property = config.getDataSourceProperties().get("allowMultiQueries");
+        return property != null && Boolean.parseBoolean(property.toString());
+    }
+
+    private List<DBResult> executeSequential(Connection connection) throws SQLException {
+        List<DBResult> results = new ArrayList<>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(DB.executeQueryRows(connection, queries.get(i), params.get(i)));
+        }
+        return results;
+    }
+
+    private List<DBResult> executePipelined(Connection connection) throws SQLException {
+        if (queries.size() <= 1) {
+            return executeSequential(connection);
+        }
+        String sqlQuery = String.join(";\n", queries);
+        List<DBResult> results = new ArrayList<>(queries.size());
+        PreparedStatement statement = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(DB.getMetrics(), connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery);
+            int parameterIndex = 1;
+            for (List<Object> queryParams : params) {
+                for (Object param : queryParams) {
+                    statement.setObject(parameterIndex++, param);
+                }
+            }
+            boolean isResultSet = statement.execute();
+            timer.executed();
+            long rows = 0;
+            while (true) {
+                if (isResultSet) {
+                    try (ResultSet resultSet = statement.getResultSet()) {
+                        DBResult result = DBResult.of(resultSet);
+                        rows += result.size();
+                        results.add(result);
+                    }
+                } else if (statement.getUpdateCount() == -1) {
+                    break;
+                }
+                isResultSet = statement.getMoreResults();
+            }
+            if (results.size() != queries.size()) {
+                throw new SQLException("Expected " + queries.size() + " result sets but got " + results.size()
+                        + ", only queries returning rows can be pipelined");
+            }
+            timer.finish(rows);
+            return results;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            DB.close(null, statement, null);
+        }
+    }
+}
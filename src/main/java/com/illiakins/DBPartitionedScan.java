@@ -0,0 +1,387 @@
+package com.illiakins;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans a table or query in key ranges which run concurrently on pooled connections.
+ * <pre>
+ * new DBPartitionedScan("default", "orders", "id").partitions(8)
+ *         .execute(partition -&gt; row -&gt; export(row));
+ * </pre>
+ * The key range is split evenly between MIN(key) and MAX(key) of integer and date keys, or at sampled
+ * boundaries (every 1/N of the rows in key order) for keys of any type and skewed distributions.
+ * Rows with a NULL key are not scanned. Partitions run on at most parallelism connections, by default the
+ * maximum pool size of the data source.
+ * <p>
+ * Rows are handed to one consumer per partition, on the partition's thread, or through a merged stream.
+ * With ordered(true) every partition is read in key order and the stream returns the partitions in order,
+ * so the whole stream is ordered by the key.
+ * <p>
+ * A SELECT passed instead of a table is wrapped as a derived table in every partition query, which MySQL
+ * materializes per query unless it can merge it (always before 5.7, with GROUP BY, DISTINCT, LIMIT, UNION or
+ * aggregates since). Pass a table, or a SELECT MySQL can merge, for large scans.
+ */
+public class DBPartitionedScan {
+    private static final int STREAM_BUFFER_ROWS = 1024;
+    private static final Object END = new Object();
+
+    private final String dataSourceName;
+    private final String baseQuery;
+    private final String keyColumn;
+    private List<Object> params = new ArrayList<>();
+    private int partitions = Runtime.getRuntime().availableProcessors();
+    private int parallelism;
+    private int fetchSize;
+    private boolean sampledBoundaries;
+    private boolean ordered;
+
+    /**
+     * @param tableOrQuery a table name or a SELECT, which is scanned as a derived table
+     * @param keyColumn column the ranges are taken on, ideally indexed
+     */
+    public DBPartitionedScan(String dataSourceName, String tableOrQuery, String keyColumn) {
+        this.dataSourceName = dataSourceName;
+        String trimmed = tableOrQuery.trim();
+        this.baseQuery = trimmed.regionMatches(true, 0, "select", 0, 6)
+                ? "(" + trimmed + ") scan_base" : trimmed;
+        this.keyColumn = keyColumn;
+    }
+
+    public DBPartitionedScan params(List<Object> queryParams) {
+        this.params = queryParams;
+        return this;
+    }
+
+    public DBPartitionedScan partitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("At least one partition is needed: " + partitions);
+        }
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * Partitions scanned at the same time, 0 for the maximum pool size of the data source.
+     */
+    public DBPartitionedScan parallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param fetchSize passed to DB.openCursor(), DB.STREAMING_FETCH_SIZE streams the partitions on MySQL
+     */
+    public DBPartitionedScan fetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    public DBPartitionedScan sampledBoundaries(boolean sampledBoundaries) {
+        this.sampledBoundaries = sampledBoundaries;
+        return this;
+    }
+
+    public DBPartitionedScan ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * Runs the partitions and waits for all of them. The first failure cancels the partitions not started yet.
+     * @param consumerFactory creates the consumer of a partition, each one is called from a single thread
+     * @return rows read per partition
+     */
+    public long[] execute(IntFunction<DBRowConsumer> consumerFactory) throws SQLException {
+        List<Object> boundaries = boundaries();
+        int count = boundaries.size() - 1;
+        long[] rows = new long[count];
+        ExecutorService executor = newExecutor(count);
+        try {
+            // partitions are awaited in the order they finish, so the first failure cancels the others right away
+            CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+            List<Future<Void>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int partition = i;
+                futures.add(completion.submit(() -> {
+                    rows[partition] = scanPartition(boundaries, partition, consumerFactory.apply(partition));
+                    return null;
+                }));
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    futures.forEach(f -> f.cancel(true));
+                    Throwable cause = e.getCause();
+                    throw cause instanceof SQLException ? (SQLException) cause
+                            : new SQLException("Partitioned scan failed", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    futures.forEach(f -> f.cancel(true));
+                    throw new SQLException("Interrupted while waiting for the partitions", e);
+                }
+            }
+            return rows;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the rows of all partitions as one stream, the partitions are read concurrently in the background.
+     * The stream has to be closed, closing it early stops the scan.
+     */
+    public Stream<Map<String, Object>> stream() throws SQLException {
+        List<Object> boundaries = boundaries();
+        int count = boundaries.size() - 1;
+        MergedRows merged = new MergedRows(count);
+        ExecutorService executor = newExecutor(count);
+        for (int i = 0; i < count; i++) {
+            int partition = i;
+            executor.execute(() -> merged.produce(partition, boundaries));
+        }
+        executor.shutdown();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    merged.close();
+                    executor.shutdownNow();
+                });
+    }
+
+    private ExecutorService newExecutor(int count) {
+        int threads = parallelism > 0 ? parallelism : maxPoolSize();
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, Math.min(threads, count)), runnable -> {
+            Thread thread = new Thread(runnable, "db-scan-" + dataSourceName + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private int maxPoolSize() {
+        HikariConfig config = DB.getConfigMap().get(dataSourceName);
+        return config == null ? 1 : config.getMaximumPoolSize();
+    }
+
+    private long scanPartition(List<Object> boundaries, int partition, DBRowConsumer consumer) throws SQLException {
+        boolean last = partition == boundaries.size() - 2;
+        String sqlQuery = "SELECT * FROM " + baseQuery + " WHERE " + keyColumn + " >= ? AND " + keyColumn
+                + (last ? " <= ?" : " < ?") + (ordered ? " ORDER BY " + keyColumn : "");
+        List<Object> partitionParams = new ArrayList<>(params);
+        partitionParams.add(boundaries.get(partition));
+        partitionParams.add(boundaries.get(partition + 1));
+        long rows = 0;
+        try (DBCursor cursor = DB.openCursor(dataSourceName, sqlQuery, fetchSize, partitionParams)) {
+            Map<String, Object> row;
+            while ((row = cursor.fetch()) != null) {
+                consumer.accept(row);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Partition bounds in ascending order, partition i covers [i, i + 1), the last one includes its upper bound.
+     */
+    List<Object> boundaries() throws SQLException {
+        List<Object> boundaries = new ArrayList<>();
+        // equal boundaries of a skewed sample would make empty partitions
+        for (Object boundary : sampledBoundaries ? sampleBoundaries() : splitRange()) {
+            if (boundaries.isEmpty() || !boundary.equals(boundaries.get(boundaries.size() - 1))) {
+                boundaries.add(boundary);
+            }
+        }
+        if (boundaries.size() == 1) {
+            boundaries.add(boundaries.get(0));
+        }
+        return boundaries;
+    }
+
+    private List<Object> splitRange() throws SQLException {
+        DBResult range = DB.executeQueryRows(dataSourceName, "SELECT MIN(" + keyColumn + "), MAX(" + keyColumn
+                + ") FROM " + baseQuery, params);
+        Object min = range.get(0).getValue(0);
+        Object max = range.get(0).getValue(1);
+        List<Object> boundaries = new ArrayList<>(partitions + 1);
+        if (min == null) {
+            // nothing to scan, one partition which finds no rows
+            boundaries.add(0);
+            boundaries.add(0);
+            return boundaries;
+        }
+        boolean dates = !(min instanceof Number);
+        long low = toLong(min);
+        long high = toLong(max);
+        long step = Math.max(1, (high - low) / partitions + 1);
+        // the outer bounds keep the values as read, a millisecond copy would cut off microseconds of the maximum
+        boundaries.add(min);
+        for (long bound = low + step; bound < high && boundaries.size() < partitions; bound += step) {
+            boundaries.add(dates ? new Timestamp(bound) : (Object) bound);
+        }
+        boundaries.add(max);
+        return boundaries;
+    }
+
+    private static long toLong(Object key) throws SQLException {
+        if (key instanceof BigDecimal) {
+            try {
+                return ((BigDecimal) key).longValueExact();
+            } catch (ArithmeticException e) {
+                throw new SQLException("Use sampledBoundaries(true) for fractional or out of range decimal keys", e);
+            }
+        }
+        if (key instanceof Double || key instanceof Float) {
+            throw new SQLException("Use sampledBoundaries(true) for floating point keys");
+        }
+        if (key instanceof Number) {
+            return ((Number) key).longValue();
+        }
+        if (key instanceof java.util.Date) {
+            return ((java.util.Date) key).getTime();
+        }
+        if (key instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) key).getTime();
+        }
+        if (key instanceof LocalDate) {
+            return Timestamp.valueOf(((LocalDate) key).atStartOfDay()).getTime();
+        }
+        throw new SQLException("Key of type " + key.getClass().getName()
+                + " can not be split evenly, use sampledBoundaries(true)");
+    }
+
+    private List<Object> sampleBoundaries() throws SQLException {
+        DBResult total = DB.executeQueryRows(dataSourceName, "SELECT COUNT(" + keyColumn + ") FROM " + baseQuery,
+                params);
+        long rows = ((Number) total.get(0).getValue(0)).longValue();
+        List<Object> boundaries = new ArrayList<>(partitions + 1);
+        String sqlQuery = "SELECT " + keyColumn + " FROM " + baseQuery + " WHERE " + keyColumn
+                + " IS NOT NULL ORDER BY " + keyColumn;
+        for (int i = 0; i < partitions && rows > 0; i++) {
+            boundaries.add(keyAt(sqlQuery + " LIMIT 1 OFFSET " + rows * i / partitions));
+        }
+        if (boundaries.isEmpty()) {
+            boundaries.add(0);
+            boundaries.add(0);
+            return boundaries;
+        }
+        boundaries.add(keyAt(sqlQuery + " DESC LIMIT 1"));
+        return boundaries;
+    }
+
+    private Object keyAt(String sqlQuery) throws SQLException {
+        return DB.executeQueryRows(dataSourceName, sqlQuery, params).get(0).getValue(0);
+    }
+
+    /**
+     * Bounded buffers between the partition threads and the stream: one per partition when ordered,
+     * so partitions ahead of the consumer stop once their buffer is full, otherwise a single shared one.
+     */
+    private class MergedRows implements Iterator<Map<String, Object>> {
+        private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        private final int partitionCount;
+        private volatile boolean closed;
+        private int current;
+        private int finished;
+        private Object next;
+
+        MergedRows(int partitionCount) {
+            this.partitionCount = partitionCount;
+            for (int i = 0; i < (ordered ? partitionCount : 1); i++) {
+                queues.add(new ArrayBlockingQueue<>(STREAM_BUFFER_ROWS));
+            }
+        }
+
+        void produce(int partition, List<Object> boundaries) {
+            BlockingQueue<Object> queue = queues.get(ordered ? partition : 0);
+            try {
+                try {
+                    scanPartition(boundaries, partition, row -> put(queue, row));
+                    put(queue, END);
+                } catch (SQLException | RuntimeException e) {
+                    put(queue, e);
+                }
+            } catch (SQLException e) {
+                // the stream was closed, nothing reads the queue any more
+            }
+        }
+
+        /**
+         * Stops the producers, close() is followed by interrupting their threads.
+         */
+        void close() {
+            closed = true;
+        }
+
+        private void put(BlockingQueue<Object> queue, Object item) throws SQLException {
+            if (closed) {
+                throw new SQLException("Partitioned scan was stopped");
+            }
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Partitioned scan was stopped", e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && finished < partitionCount) {
+                Object item;
+                try {
+                    item = queues.get(ordered ? current : 0).take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for rows", e);
+                }
+                if (item == END) {
+                    finished++;
+                    current++;
+                } else if (item instanceof Exception) {
+                    finished = partitionCount;
+                    throw new IllegalStateException("Partitioned scan failed", (Exception) item);
+                } else {
+                    next = item;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map<String, Object> row = (Map<String, Object>) next;
+            next = null;
+            return row;
+        }
+    }
+}
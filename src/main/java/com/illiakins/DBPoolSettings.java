@@ -0,0 +1,177 @@
+package com.illiakins;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicProperty;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binds the pool settings of a data source to dynamic properties, by default under "db.&lt;dataSourceName&gt;.":
+ * maximumPoolSize, minimumIdle, connectionTimeout, idleTimeout, maxLifetime, leakDetectionThreshold,
+ * validationTimeout, prepStmtCacheSize and prepStmtCacheSqlLimit. Settings which are not defined keep the
+ * value the pool was created with.
+ * <p>
+ * Every change is applied to the live pool through HikariConfigMXBean, so a pool can be resized while it serves
+ * traffic, and to the stored configuration used when the pool is rebuilt. connectionTimeout and validationTimeout
+ * are copied by HikariCP when the pool starts, and the prepared statement cache settings are driver properties of
+ * new connections, so these take effect once the pool is rebuilt.
+ * Pools registered after bind() are created with the bound settings.
+ */
+public class DBPoolSettings {
+    private static final Logger LOG = LoggerFactory.getLogger(DBPoolSettings.class);
+    private static final Map<String, DBPoolSettings> bound = new ConcurrentHashMap<>();
+
+    private final String dataSourceName;
+    private final DynamicIntProperty maximumPoolSize;
+    private final DynamicIntProperty minimumIdle;
+    private final DynamicLongProperty connectionTimeout;
+    private final DynamicLongProperty idleTimeout;
+    private final DynamicLongProperty maxLifetime;
+    private final DynamicLongProperty leakDetectionThreshold;
+    private final DynamicLongProperty validationTimeout;
+    private final DynamicIntProperty prepStmtCacheSize;
+    private final DynamicIntProperty prepStmtCacheSqlLimit;
+    private final List<String> propertyNames = new ArrayList<>();
+    private final Runnable callback = this::onChange;
+    private volatile boolean active = true;
+
+    private DBPoolSettings(String dataSourceName, String keyPrefix) {
+        this.dataSourceName = dataSourceName;
+        for (String name : new String[] {"maximumPoolSize", "minimumIdle", "connectionTimeout", "idleTimeout",
+                "maxLifetime", "leakDetectionThreshold", "validationTimeout", "prepStmtCacheSize",
+                "prepStmtCacheSqlLimit"}) {
+            propertyNames.add(keyPrefix + name);
+        }
+        maximumPoolSize = PropertiesReader.getIntProperty(keyPrefix + "maximumPoolSize", -1);
+        minimumIdle = PropertiesReader.getIntProperty(keyPrefix + "minimumIdle", -1);
+        connectionTimeout = PropertiesReader.getLongProperty(keyPrefix + "connectionTimeout", -1);
+        idleTimeout = PropertiesReader.getLongProperty(keyPrefix + "idleTimeout", -1);
+        maxLifetime = PropertiesReader.getLongProperty(keyPrefix + "maxLifetime", -1);
+        leakDetectionThreshold = PropertiesReader.getLongProperty(keyPrefix + "leakDetectionThreshold", -1);
+        validationTimeout = PropertiesReader.getLongProperty(keyPrefix + "validationTimeout", -1);
+        prepStmtCacheSize = PropertiesReader.getIntProperty(keyPrefix + "prepStmtCacheSize", -1);
+        prepStmtCacheSqlLimit = PropertiesReader.getIntProperty(keyPrefix + "prepStmtCacheSqlLimit", -1);
+    }
+
+    public static DBPoolSettings bind(String dataSourceName) {
+        return bind(dataSourceName, "db." + dataSourceName + ".");
+    }
+
+    /**
+     * Binds the settings under the key prefix to the data source, replacing an earlier binding,
+     * and applies the current values right away.
+     */
+    public static DBPoolSettings bind(String dataSourceName, String keyPrefix) {
+        DBPoolSettings settings = new DBPoolSettings(dataSourceName, keyPrefix);
+        // the property handles are shared, so the callback goes on the properties where it can be removed again
+        for (String name : settings.propertyNames) {
+            DynamicProperty.getInstance(name).addCallback(settings.callback);
+        }
+        DBPoolSettings previous = bound.put(dataSourceName, settings);
+        if (previous != null) {
+            previous.stop();
+        }
+        settings.apply();
+        return settings;
+    }
+
+    /**
+     * Stops following the properties, the pool keeps its current settings.
+     */
+    public void unbind() {
+        stop();
+        bound.remove(dataSourceName, this);
+    }
+
+    private void stop() {
+        active = false;
+        for (String name : propertyNames) {
+            DynamicProperty.getInstance(name).removeCallback(callback);
+        }
+    }
+
+    private void onChange() {
+        if (active) {
+            apply();
+        }
+    }
+
+    /**
+     * Applies the bound settings of the data source, if any, to the configuration of a new pool.
+     */
+    static void applyBound(String dataSourceName, HikariConfig config) {
+        DBPoolSettings settings = bound.get(dataSourceName);
+        if (settings != null) {
+            settings.applyTo(config);
+        }
+    }
+
+    /**
+     * Applies the current values to the stored configuration and the live pool.
+     */
+    public synchronized void apply() {
+        HikariConfig config = DB.getConfigMap().get(dataSourceName);
+        if (config != null) {
+            applyTo(config);
+        }
+        DataSource dataSource = DB.getDataSource(dataSourceName);
+        if (dataSource instanceof HikariConfigMXBean && dataSource != config) {
+            applyTo((HikariConfigMXBean) dataSource);
+        }
+    }
+
+    private void applyTo(HikariConfigMXBean target) {
+        int maximum = maximumPoolSize.get() > 0 ? maximumPoolSize.get() : target.getMaximumPoolSize();
+        int minimum = minimumIdle.get() >= 0 ? minimumIdle.get() : target.getMinimumIdle();
+        if (minimum > maximum) {
+            LOG.warn("minimumIdle {} of `{}` is above maximumPoolSize {}, using {}", minimum, dataSourceName,
+                    maximum, maximum);
+            minimum = maximum;
+        }
+        // shrink the minimum first, so the minimum never exceeds the maximum in between
+        if (minimum < target.getMinimumIdle()) {
+            target.setMinimumIdle(minimum);
+        }
+        if (maximum != target.getMaximumPoolSize()) {
+            LOG.info("maximumPoolSize of `{}` changed from {} to {}", dataSourceName, target.getMaximumPoolSize(),
+                    maximum);
+            target.setMaximumPoolSize(maximum);
+        }
+        if (minimum != target.getMinimumIdle()) {
+            target.setMinimumIdle(minimum);
+        }
+        if (connectionTimeout.get() >= 0) {
+            target.setConnectionTimeout(connectionTimeout.get());
+        }
+        if (idleTimeout.get() >= 0) {
+            target.setIdleTimeout(idleTimeout.get());
+        }
+        if (maxLifetime.get() >= 0) {
+            target.setMaxLifetime(maxLifetime.get());
+        }
+        if (leakDetectionThreshold.get() >= 0) {
+            target.setLeakDetectionThreshold(leakDetectionThreshold.get());
+        }
+        if (validationTimeout.get() >= 0) {
+            target.setValidationTimeout(validationTimeout.get());
+        }
+        if (target instanceof HikariConfig) {
+            HikariConfig config = (HikariConfig) target;
+            if (prepStmtCacheSize.get() >= 0) {
+                config.addDataSourceProperty("prepStmtCacheSize", String.valueOf(prepStmtCacheSize.get()));
+            }
+            if (prepStmtCacheSqlLimit.get() >= 0) {
+                config.addDataSourceProperty("prepStmtCacheSqlLimit", String.valueOf(prepStmtCacheSqlLimit.get()));
+            }
+        }
+    }
+}
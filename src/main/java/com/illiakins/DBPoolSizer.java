@@ -0,0 +1,253 @@
+package com.illiakins;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adjusts the maximum pool size of a data source between bounds, additive increase / multiplicative decrease.
+ * <p>
+ * Every interval it looks at the checkout wait (p99 of the interval), the threads waiting for a connection,
+ * the active connections and the mean execute time of the statements:
+ * <ul>
+ * <li>the mean execute time rose above latencyTolerance times its baseline, the server is overloaded:
+ * the size is multiplied by decreaseFactor</li>
+ * <li>the checkout wait is above the target or threads are waiting while the pool is busy: the size grows by
+ * increaseStep</li>
+ * <li>the pool is mostly idle: the size shrinks by one</li>
+ * </ul>
+ * Every change is logged with the numbers it was based on. The checkout and statement timings come from
+ * {@link DBMetrics}; start() enables DB metrics without a slow-query log if they are not enabled yet.
+ */
+public class DBPoolSizer {
+    private static final Logger LOG = LoggerFactory.getLogger(DBPoolSizer.class);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "db-pool-sizer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String dataSourceName;
+    private final int minPoolSize;
+    private final int maxPoolSize;
+    private final long targetCheckoutNanos;
+    private long intervalMillis = 5_000;
+    private int increaseStep = 2;
+    private double decreaseFactor = 0.75;
+    private double latencyTolerance = 2.0;
+    private double idleUtilisation = 0.5;
+
+    private final DBHistogram checkoutWindow = new DBHistogram();
+    private final LongAdder executeNanos = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final DBMetricsListener listener = new DBMetricsListener() {
+        @Override
+        public void onCheckout(String name, long nanos, boolean failed) {
+            if (dataSourceName.equals(name)) {
+                checkoutWindow.record(nanos);
+            }
+        }
+
+        @Override
+        public void onStatement(String name, String fingerprint, long execute, long fetch, long rows,
+                Throwable error) {
+            if (dataSourceName.equals(name)) {
+                executeNanos.add(execute);
+                statements.increment();
+            }
+        }
+    };
+    private double baselineExecuteNanos;
+    private DBMetrics metrics;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param targetCheckoutMillis checkout wait (p99) the controller aims to stay below
+     */
+    public DBPoolSizer(String dataSourceName, int minPoolSize, int maxPoolSize, long targetCheckoutMillis) {
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("Pool size bounds must satisfy 1 <= min <= max");
+        }
+        this.dataSourceName = dataSourceName;
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = maxPoolSize;
+        this.targetCheckoutNanos = TimeUnit.MILLISECONDS.toNanos(targetCheckoutMillis);
+    }
+
+    public DBPoolSizer intervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        return this;
+    }
+
+    public DBPoolSizer increaseStep(int increaseStep) {
+        this.increaseStep = increaseStep;
+        return this;
+    }
+
+    public DBPoolSizer decreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+        return this;
+    }
+
+    /**
+     * How many times the mean execute time may exceed its baseline before the pool is shrunk for overload.
+     */
+    public DBPoolSizer latencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * Share of active connections below which an idle pool shrinks.
+     */
+    public DBPoolSizer idleUtilisation(double idleUtilisation) {
+        this.idleUtilisation = idleUtilisation;
+        return this;
+    }
+
+    public synchronized DBPoolSizer start() {
+        if (task != null) {
+            return this;
+        }
+        metrics = DB.getMetrics();
+        if (metrics == null) {
+            metrics = new DBMetrics(0);
+            DB.setMetrics(metrics);
+        }
+        metrics.addListener(listener);
+        task = SCHEDULER.scheduleAtFixedRate(() -> {
+            try {
+                adjust();
+            } catch (RuntimeException e) {
+                LOG.warn("Pool sizing of `{}` failed", dataSourceName, e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            metrics.removeListener(listener);
+            task = null;
+        }
+    }
+
+    private void adjust() {
+        DataSource dataSource = DB.getDataSource(dataSourceName);
+        if (!(dataSource instanceof HikariDataSource)) {
+            return;
+        }
+        HikariDataSource pool = (HikariDataSource) dataSource;
+        HikariPoolMXBean poolMXBean = poolMXBean(pool);
+        if (poolMXBean == null) {
+            return;
+        }
+        int active = poolMXBean.getActiveConnections();
+        int waiting = poolMXBean.getThreadsAwaitingConnection();
+        long checkoutP99 = checkoutWindow.getPercentile(0.99);
+        checkoutWindow.reset();
+        long count = statements.sumThenReset();
+        long execute = executeNanos.sumThenReset();
+        double meanExecute = count == 0 ? 0 : (double) execute / count;
+
+        int size = pool.getMaximumPoolSize();
+        double utilisation = (double) active / size;
+        int newSize = size;
+        String reason = null;
+        if (meanExecute > 0 && baselineExecuteNanos > 0 && meanExecute > baselineExecuteNanos * latencyTolerance
+                && size > minPoolSize) {
+            newSize = Math.max(minPoolSize, (int) (size * decreaseFactor));
+            reason = "statements slowed down to " + String.format("%.2f", meanExecute / baselineExecuteNanos)
+                    + "x their baseline";
+        } else if ((checkoutP99 > targetCheckoutNanos || waiting > 0 && utilisation >= 1) && size < maxPoolSize) {
+            newSize = Math.min(maxPoolSize, size + increaseStep);
+            reason = "checkout wait above target";
+        } else if (utilisation < idleUtilisation && waiting == 0 && checkoutP99 <= targetCheckoutNanos / 2
+                && size > minPoolSize) {
+            newSize = size - 1;
+            reason = "pool mostly idle";
+        }
+        updateBaseline(meanExecute);
+
+        if (newSize != size) {
+            LOG.info("Resizing `{}` from {} to {}, {} (checkout p99 {} ms, waiting {}, active {}, mean execute {} ms)",
+                    dataSourceName, size, newSize, reason, checkoutP99 / 1e6, waiting, active, meanExecute / 1e6);
+            resize(pool, newSize);
+        } else {
+            LOG.debug("Keeping `{}` at {} (checkout p99 {} ms, waiting {}, active {}, mean execute {} ms)",
+                    dataSourceName, size, checkoutP99 / 1e6, waiting, active, meanExecute / 1e6);
+        }
+    }
+
+    /**
+     * The baseline follows lower execute times right away and higher ones slowly,
+     * so a lasting change of the workload is accepted while a spike is not.
+     */
+    private void updateBaseline(double meanExecute) {
+        if (meanExecute <= 0) {
+            return;
+        }
+        if (baselineExecuteNanos == 0 || meanExecute < baselineExecuteNanos) {
+            baselineExecuteNanos = meanExecute;
+        } else {
+            baselineExecuteNanos += (meanExecute - baselineExecuteNanos) * 0.05;
+        }
+    }
+
+    private void resize(HikariConfigMXBean pool, int size) {
+        if (pool.getMinimumIdle() > size) {
+            pool.setMinimumIdle(size);
+        }
+        pool.setMaximumPoolSize(size);
+        HikariConfig config = DB.getConfigMap().get(dataSourceName);
+        if (config != null) {
+            if (config.getMinimumIdle() > size) {
+                config.setMinimumIdle(size);
+            }
+            config.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * The pool MXBean from JMX if the pool registers its MBeans, otherwise from the data source itself.
+     */
+    static HikariPoolMXBean poolMXBean(HikariDataSource dataSource) {
+        if (dataSource.isRegisterMbeans()) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("com.zaxxer.hikari:type=Pool (" + dataSource.getPoolName() + ")");
+                if (server.isRegistered(name)) {
+                    return JMX.newMXBeanProxy(server, name, HikariPoolMXBean.class);
+                }
+            } catch (MalformedObjectNameException e) {
+                LOG.debug("Invalid pool name {}", dataSource.getPoolName(), e);
+            }
+        }
+        try {
+            Field field = HikariDataSource.class.getDeclaredField("pool");
+            field.setAccessible(true);
+            Object pool = field.get(dataSource);
+            return pool instanceof HikariPoolMXBean ? (HikariPoolMXBean) pool : null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Pool metrics of {} are not available, enable registerMbeans", dataSource.getPoolName());
+            return null;
+        }
+    }
+}
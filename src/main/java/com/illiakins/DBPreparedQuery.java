@@ -0,0 +1,417 @@
+package com.illiakins;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precompiled statement handle. Declare it once, for example as a static field, with the SQL and the
+ * java.sql.Types of its parameters, then run it as often as needed:
+ * <pre>
+ * static final DBPreparedQuery FIND_USER = DBPreparedQuery.of("SELECT * FROM user WHERE id = ?", Types.BIGINT);
+ * DBResult rows = FIND_USER.executeQuery(connection, statement -&gt; statement.setLong(1, userId));
+ * </pre>
+ * A {@link Binder} binds straight through the typed PreparedStatement setters, without a parameter list or boxing.
+ * The Object... variants bind by the declared types instead of setObject().
+ * <p>
+ * On a connection from DB.getConnectionForTransaction() the prepared statement is cached until the connection is
+ * released, so a statement run thousands of times in one transaction is prepared once. The binder has to set
+ * every parameter, values left over from the previous run are not cleared. On other connections the statement is
+ * prepared per call and the driver statement cache (cachePrepStmts) applies.
+ */
+public final class DBPreparedQuery {
+    private final String sqlQuery;
+    private final int[] parameterTypes;
+    private final boolean generatedKeys;
+    private volatile MapperCache<?> mapperCache;
+
+    private DBPreparedQuery(String sqlQuery, int[] parameterTypes, boolean generatedKeys) {
+        this.sqlQuery = sqlQuery;
+        this.parameterTypes = parameterTypes;
+        this.generatedKeys = generatedKeys;
+    }
+
+    /**
+     * @param parameterTypes java.sql.Types of the parameters in order, one per placeholder
+     * @throws IllegalArgumentException if the number of types does not match the placeholders of the query
+     */
+    public static DBPreparedQuery of(String sqlQuery, int... parameterTypes) {
+        int placeholders = countPlaceholders(sqlQuery);
+        if (placeholders != parameterTypes.length) {
+            throw new IllegalArgumentException("The query has " + placeholders + " parameters but "
+                    + parameterTypes.length + " types are declared: " + sqlQuery);
+        }
+        return new DBPreparedQuery(sqlQuery, parameterTypes.clone(), false);
+    }
+
+    /**
+     * Returns a handle of the same statement which is prepared to return generated keys, for executeInsert().
+     */
+    public DBPreparedQuery withGeneratedKeys() {
+        return new DBPreparedQuery(sqlQuery, parameterTypes, true);
+    }
+
+    public String getSqlQuery() {
+        return sqlQuery;
+    }
+
+    public int getParameterCount() {
+        return parameterTypes.length;
+    }
+
+    PreparedStatement prepare(Connection connection) throws SQLException {
+        return generatedKeys ? connection.prepareStatement(sqlQuery, Statement.RETURN_GENERATED_KEYS)
+                : connection.prepareStatement(sqlQuery);
+    }
+
+    public DBResult executeQuery(String dataSourceName, Binder binder) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            return executeQuery(connection, binder);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    public DBResult executeQuery(String dataSourceName, Object... parameters) throws SQLException {
+        return executeQuery(dataSourceName, statement -> bind(statement, parameters));
+    }
+
+    public DBResult executeQuery(Connection connection, Object... parameters) throws SQLException {
+        return executeQuery(connection, statement -> bind(statement, parameters));
+    }
+
+    public DBResult executeQuery(Connection connection, Binder binder) throws SQLException {
+        return run(connection, binder, (statement, timer) -> {
+            try (ResultSet resultSet = statement.executeQuery()) {
+                timer.executed();
+                DBResult result = DBResult.of(resultSet);
+                timer.finish(result.size());
+                return result;
+            }
+        });
+    }
+
+    public <T> List<T> query(String dataSourceName, Binder binder, DBRowMapper<T> rowMapper) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            return query(connection, binder, rowMapper);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    public <T> List<T> query(Connection connection, Binder binder, DBRowMapper<T> rowMapper) throws SQLException {
+        return run(connection, binder, (statement, timer) -> {
+            try (ResultSet resultSet = statement.executeQuery()) {
+                timer.executed();
+                List<T> result = new ArrayList<>();
+                while (resultSet.next()) {
+                    result.add(rowMapper.mapRow(resultSet));
+                }
+                timer.finish(result.size());
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Maps the rows to instances of the class, see {@link DBClassMapper}. The mapper is resolved once per handle.
+     */
+    public <T> List<T> query(String dataSourceName, Binder binder, Class<T> type) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            return query(connection, binder, type);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    public <T> List<T> query(Connection connection, Binder binder, Class<T> type) throws SQLException {
+        return run(connection, binder, (statement, timer) -> {
+            try (ResultSet resultSet = statement.executeQuery()) {
+                timer.executed();
+                DBRowMapper<T> rowMapper = mapperFor(type, resultSet);
+                List<T> result = new ArrayList<>();
+                while (resultSet.next()) {
+                    result.add(rowMapper.mapRow(resultSet));
+                }
+                timer.finish(result.size());
+                return result;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> DBRowMapper<T> mapperFor(Class<T> type, ResultSet resultSet) throws SQLException {
+        MapperCache<?> cached = mapperCache;
+        if (cached != null && cached.type == type) {
+            return (DBRowMapper<T>) cached.rowMapper;
+        }
+        DBRowMapper<T> rowMapper = DBClassMapper.forResultSet(type, resultSet.getMetaData());
+        mapperCache = new MapperCache<>(type, rowMapper);
+        return rowMapper;
+    }
+
+    /**
+     * @return number of affected rows
+     */
+    public int executeUpdate(String dataSourceName, Binder binder) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            return executeUpdate(connection, binder);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    public int executeUpdate(String dataSourceName, Object... parameters) throws SQLException {
+        return executeUpdate(dataSourceName, statement -> bind(statement, parameters));
+    }
+
+    public int executeUpdate(Connection connection, Object... parameters) throws SQLException {
+        return executeUpdate(connection, statement -> bind(statement, parameters));
+    }
+
+    public int executeUpdate(Connection connection, Binder binder) throws SQLException {
+        return run(connection, binder, (statement, timer) -> {
+            int affected = statement.executeUpdate();
+            timer.executed();
+            DB.invalidateCache(connection, sqlQuery);
+            timer.finish(affected);
+            return affected;
+        });
+    }
+
+    /**
+     * Runs an insert on a handle created withGeneratedKeys().
+     * @return the first generated key, 0 if there is none
+     */
+    public long executeInsert(String dataSourceName, Binder binder) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            return executeInsert(connection, binder);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    public long executeInsert(Connection connection, Binder binder) throws SQLException {
+        if (!generatedKeys) {
+            throw new SQLException("Generated keys were not requested, use withGeneratedKeys() for: " + sqlQuery);
+        }
+        return run(connection, binder, (statement, timer) -> {
+            int affected = statement.executeUpdate();
+            timer.executed();
+            DB.invalidateCache(connection, sqlQuery);
+            long key = 0;
+            try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                if (resultSet.next()) {
+                    key = resultSet.getLong(1);
+                }
+            }
+            timer.finish(affected);
+            return key;
+        });
+    }
+
+    /**
+     * Runs the statement once per item as a JDBC batch.
+     * @return affected rows per item as reported by the driver
+     */
+    public <T> int[] executeBatch(Connection connection, Iterable<T> items, ItemBinder<T> itemBinder)
+            throws SQLException {
+        return run(connection, statement -> {
+            for (T item : items) {
+                itemBinder.bind(statement, item);
+                statement.addBatch();
+            }
+        }, (statement, timer) -> {
+            int[] affected = statement.executeBatch();
+            timer.executed();
+            DB.invalidateCache(connection, sqlQuery);
+            timer.finish(affected.length);
+            return affected;
+        });
+    }
+
+    private <R> R run(Connection connection, Binder binder, Execution<R> execution) throws SQLException {
+        DBStatementCache statementCache = DB.getStatementCache(connection);
+        DBMetrics.Timer timer = DBMetrics.Timer.start(DB.getMetrics(), connection, sqlQuery);
+        PreparedStatement statement = null;
+        try {
+            statement = statementCache == null ? prepare(connection) : statementCache.get(connection, this);
+            binder.bind(statement);
+            return execution.execute(statement, timer);
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            if (statementCache != null) {
+                statementCache.evict(this);
+            }
+            throw e;
+        } finally {
+            if (statementCache == null && statement != null) {
+                DB.close(null, statement, null);
+            }
+        }
+    }
+
+    /**
+     * Binds the values with the setter of the declared type of each parameter, NULL values with setNull().
+     */
+    public void bind(PreparedStatement statement, Object... parameters) throws SQLException {
+        if (parameters.length != parameterTypes.length) {
+            throw new SQLException("Expected " + parameterTypes.length + " parameters but got " + parameters.length
+                    + " for: " + sqlQuery);
+        }
+        for (int i = 0; i < parameters.length; i++) {
+            try {
+                setParameter(statement, i + 1, parameterTypes[i], parameters[i]);
+            } catch (ClassCastException e) {
+                throw new SQLException("Parameter " + (i + 1) + " of type " + parameters[i].getClass().getName()
+                        + " does not match the declared SQL type " + parameterTypes[i] + " for: " + sqlQuery, e);
+            }
+        }
+    }
+
+    private static void setParameter(PreparedStatement statement, int index, int type, Object value)
+            throws SQLException {
+        if (value == null) {
+            statement.setNull(index, type);
+            return;
+        }
+        switch (type) {
+            case Types.BIGINT:
+                statement.setLong(index, toLongExact(index, (Number) value));
+                break;
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                try {
+                    statement.setInt(index, Math.toIntExact(toLongExact(index, (Number) value)));
+                } catch (ArithmeticException e) {
+                    throw new SQLException("Parameter " + index + " value " + value + " is out of the int range", e);
+                }
+                break;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                statement.setDouble(index, ((Number) value).doubleValue());
+                break;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                statement.setBigDecimal(index,
+                        value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString()));
+                break;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+                statement.setString(index, value.toString());
+                break;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                statement.setBoolean(index, (Boolean) value);
+                break;
+            case Types.TIMESTAMP:
+                statement.setTimestamp(index,
+                        value instanceof LocalDateTime ? Timestamp.valueOf((LocalDateTime) value) : (Timestamp) value);
+                break;
+            case Types.DATE:
+                statement.setDate(index, value instanceof LocalDate ? Date.valueOf((LocalDate) value) : (Date) value);
+                break;
+            case Types.TIME:
+                statement.setTime(index, value instanceof LocalTime ? Time.valueOf((LocalTime) value) : (Time) value);
+                break;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                statement.setBytes(index, (byte[]) value);
+                break;
+            default:
+                statement.setObject(index, value, type);
+        }
+    }
+
+    /**
+     * Whole number value of the parameter, fractions and values beyond the long range are rejected
+     * instead of being truncated.
+     */
+    private static long toLongExact(int index, Number value) throws SQLException {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return value.longValue();
+        }
+        try {
+            return new BigDecimal(value.toString()).longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new SQLException("Parameter " + index + " value " + value
+                    + " is not a whole number in the long range", e);
+        }
+    }
+
+    /**
+     * Counts the ? placeholders outside of quoted literals and identifiers.
+     */
+    static int countPlaceholders(String sqlQuery) {
+        int count = 0;
+        char quote = 0;
+        for (int i = 0; i < sqlQuery.length(); i++) {
+            char c = sqlQuery.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "DBPreparedQuery{" + sqlQuery + "}";
+    }
+
+    @FunctionalInterface
+    public interface Binder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface ItemBinder<T> {
+        void bind(PreparedStatement statement, T item) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface Execution<R> {
+        R execute(PreparedStatement statement, DBMetrics.Timer timer) throws SQLException;
+    }
+
+    private static final class MapperCache<T> {
+        private final Class<T> type;
+        private final DBRowMapper<T> rowMapper;
+
+        MapperCache(Class<T> type, DBRowMapper<T> rowMapper) {
+            this.type = type;
+            this.rowMapper = rowMapper;
+        }
+    }
+}
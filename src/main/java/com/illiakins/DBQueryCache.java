@@ -0,0 +1,392 @@
+package com.illiakins;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Result cache in front of DB.executeQueryRows(), keyed by data source, SQL and parameters.
+ * <p>
+ * Entries expire after a per-query TTL and the least recently used entries are evicted once the estimated size of
+ * all cached results exceeds the byte limit. Every entry is tagged with table names, by default the tables of the
+ * FROM lists and JOINs of the query; a result whose FROM clause is not understood is dropped by any write.
+ * A write through DB.executeUpdate(), executeUpdateBatch() or executeBulkInsert() invalidates every entry tagged
+ * with the table it writes to. A write whose table can not be recognised, such as a multi-table UPDATE or DELETE,
+ * clears the whole cache. Writes inside a transaction invalidate again after the commit, so a read which cached
+ * the old rows in the meantime does not outlive it. Stored procedures do not invalidate anything, call
+ * invalidate() for the tables they change.
+ */
+public class DBQueryCache {
+    private static final Pattern READ_TABLES = Pattern.compile("(?i)\\b(?:from|join)\\b");
+    private static final Pattern TABLE_NAME = Pattern.compile("\\s*([`\\w.]+)");
+    private static final Pattern ALIAS = Pattern.compile("(?i)\\s+(?:as\\s+)?(`[^`]+`|\\w+)");
+    private static final Pattern FOLLOWING = Pattern.compile("\\s*(\\w+|\\S|$)");
+    /** words which may follow a table reference of a FROM list */
+    private static final Set<String> CLAUSE_KEYWORDS = new HashSet<>(Arrays.asList("WHERE", "JOIN", "INNER", "LEFT",
+            "RIGHT", "CROSS", "NATURAL", "STRAIGHT_JOIN", "OUTER", "ON", "USING", "GROUP", "ORDER", "LIMIT", "HAVING",
+            "UNION", "FOR", "LOCK", "WINDOW", "INTO", "USE", "FORCE", "IGNORE", "PARTITION", "PROCEDURE"));
+    /** tag of results whose tables could not all be recognised, every write invalidates them */
+    private static final String ANY_TABLE = "*";
+    private static final Pattern WRITE_TABLE = Pattern.compile(
+            "(?is)^\\s*(?:(insert|replace)(?:\\s+(?:low_priority|delayed|high_priority|ignore))*(?:\\s+into)?"
+                    + "|(update)(?:\\s+(?:low_priority|ignore))*"
+                    + "|(delete)(?:\\s+(?:low_priority|quick|ignore))*\\s+from)"
+                    + "\\s+([`\\w.]+)(.*)");
+    /** what may follow the table of a single-table UPDATE before SET or DELETE before WHERE: an alias */
+    private static final Pattern SINGLE_TABLE_TAIL =
+            Pattern.compile("(?i)^\\s*(?:(?:as\\s+)?`?\\w+`?)?\\s*$");
+    private static final Pattern UPDATE_TAIL_END = Pattern.compile("(?i)\\bset\\b");
+    private static final Pattern DELETE_TAIL_END = Pattern.compile("(?i)\\b(?:where|order|limit)\\b");
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Set<Key>> tagIndex = new HashMap<>();
+    private long totalBytes;
+    private long generation;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxBytes upper bound of the estimated heap size of all cached results
+     */
+    public DBQueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached result or runs the query and caches its result.
+     * @param ttlMillis how long the result stays valid
+     * @param tags tables the result depends on, NULL or empty to take them from the query
+     */
+    public DBResult get(String dataSourceName, String sqlQuery, List<Object> params, long ttlMillis, String... tags)
+            throws SQLException {
+        Key key = new Key(dataSourceName, sqlQuery, params);
+        long now = System.nanoTime();
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.expiresAt < 0) {
+                    hits.increment();
+                    return entry.result;
+                }
+                remove(key);
+            }
+        }
+        misses.increment();
+        DBResult result = DB.executeQueryRows(dataSourceName, sqlQuery, params);
+        Set<String> entryTags = tags == null || tags.length == 0 ? readTables(sqlQuery) : normalizeTags(tags);
+        put(key, new Entry(result, now + ttlMillis * 1_000_000, estimateBytes(result), entryTags), loadGeneration);
+        return result;
+    }
+
+    private synchronized void put(Key key, Entry entry, long loadGeneration) {
+        // a write invalidated something while the query was running, the result may already be stale
+        if (loadGeneration != generation || entry.bytes > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        totalBytes += entry.bytes;
+        for (String tag : entry.tags) {
+            tagIndex.computeIfAbsent(tag, t -> new HashSet<>()).add(key);
+        }
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, Entry> evicted = eldest.next();
+            eldest.remove();
+            unlink(evicted.getKey(), evicted.getValue());
+            evictions.increment();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unlink(key, entry);
+        }
+    }
+
+    private void unlink(Key key, Entry entry) {
+        totalBytes -= entry.bytes;
+        for (String tag : entry.tags) {
+            Set<Key> keys = tagIndex.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    tagIndex.remove(tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every entry tagged with one of the tables.
+     */
+    public synchronized void invalidate(String... tables) {
+        generation++;
+        Set<String> tags = normalizeTags(tables);
+        tags.add(ANY_TABLE);
+        for (String tag : tags) {
+            Set<Key> keys = tagIndex.remove(tag);
+            if (keys != null) {
+                for (Key key : new ArrayList<>(keys)) {
+                    remove(key);
+                    invalidations.increment();
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations.add(entries.size());
+        entries.clear();
+        tagIndex.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Invalidates the entries which depend on the table the write statement changes. Everything is invalidated
+     * when the statement is not a plain single-table write, e.g. a multi-table UPDATE or DELETE.
+     */
+    public void onUpdate(String sqlQuery) {
+        String table = writeTable(sqlQuery);
+        if (table != null) {
+            invalidate(table);
+        } else {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * The only table the statement writes to, NULL if that can not be told for sure.
+     */
+    static String writeTable(String sqlQuery) {
+        Matcher matcher = WRITE_TABLE.matcher(sqlQuery);
+        if (!matcher.find()) {
+            return null;
+        }
+        String tail = matcher.group(5);
+        Pattern tailEnd = null;
+        if (matcher.group(2) != null) {
+            tailEnd = UPDATE_TAIL_END;
+        } else if (matcher.group(3) != null) {
+            tailEnd = DELETE_TAIL_END;
+        }
+        if (tailEnd != null) {
+            Matcher end = tailEnd.matcher(tail);
+            if (end.find()) {
+                tail = tail.substring(0, end.start());
+            } else if (tailEnd == UPDATE_TAIL_END) {
+                return null;
+            }
+            if (!SINGLE_TABLE_TAIL.matcher(tail).matches()) {
+                return null;
+            }
+        }
+        return matcher.group(4);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long requests = hitCount + misses.sum();
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "DBQueryCache{entries=" + size() + ", bytes=" + getEstimatedBytes() + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount()
+                + ", invalidations=" + getInvalidationCount() + "}";
+    }
+
+    /**
+     * Tables after FROM and JOIN, including every table of a comma-separated FROM list. A FROM clause which is not
+     * understood tags the result with ANY_TABLE instead.
+     */
+    static Set<String> readTables(String sqlQuery) {
+        Set<String> tables = new HashSet<>();
+        Matcher matcher = READ_TABLES.matcher(sqlQuery);
+        while (matcher.find()) {
+            int position = matcher.end();
+            while (true) {
+                int derivedEnd = skipDerivedTable(sqlQuery, position);
+                if (derivedEnd < 0) {
+                    tables.add(ANY_TABLE);
+                    break;
+                }
+                if (derivedEnd > position) {
+                    // the tables of a derived table are tagged through its own FROM
+                    position = derivedEnd;
+                } else {
+                    Matcher name = TABLE_NAME.matcher(sqlQuery).region(position, sqlQuery.length());
+                    if (!name.lookingAt()) {
+                        tables.add(ANY_TABLE);
+                        break;
+                    }
+                    tables.add(normalizeTag(name.group(1)));
+                    position = name.end();
+                }
+                Matcher alias = ALIAS.matcher(sqlQuery).region(position, sqlQuery.length());
+                if (alias.lookingAt() && !CLAUSE_KEYWORDS.contains(alias.group(1).toUpperCase(Locale.ROOT))) {
+                    position = alias.end();
+                }
+                Matcher following = FOLLOWING.matcher(sqlQuery).region(position, sqlQuery.length());
+                following.lookingAt();
+                String next = following.group(1);
+                if (next.equals(",")) {
+                    position = following.end();
+                    continue;
+                }
+                if (!next.isEmpty() && !next.equals(")") && !next.equals(";")
+                        && !CLAUSE_KEYWORDS.contains(next.toUpperCase(Locale.ROOT))) {
+                    tables.add(ANY_TABLE);
+                }
+                break;
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Position after the parenthesized derived table starting at the position, the position itself if there is
+     * none, -1 if its parentheses do not close.
+     */
+    private static int skipDerivedTable(String sqlQuery, int position) {
+        int i = position;
+        while (i < sqlQuery.length() && Character.isWhitespace(sqlQuery.charAt(i))) {
+            i++;
+        }
+        if (i == sqlQuery.length() || sqlQuery.charAt(i) != '(') {
+            return position;
+        }
+        int depth = 0;
+        for (; i < sqlQuery.length(); i++) {
+            char c = sqlQuery.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static Set<String> normalizeTags(String... tags) {
+        Set<String> normalized = new HashSet<>();
+        for (String tag : tags) {
+            normalized.add(normalizeTag(tag));
+        }
+        return normalized;
+    }
+
+    private static String normalizeTag(String table) {
+        String tag = table.replace("`", "").toLowerCase(Locale.ROOT);
+        return tag.substring(tag.lastIndexOf('.') + 1);
+    }
+
+    private static long estimateBytes(DBResult result) {
+        long bytes = 64;
+        for (DBRow row : result) {
+            bytes += 32 + 8L * row.getSchema().getColumnCount();
+            for (int i = 0; i < row.getSchema().getColumnCount(); i++) {
+                Object value = row.getValue(i);
+                if (value instanceof String) {
+                    bytes += 40 + 2L * ((String) value).length();
+                } else if (value instanceof byte[]) {
+                    bytes += 16 + ((byte[]) value).length;
+                } else if (value instanceof BigDecimal) {
+                    bytes += 64;
+                } else if (value != null) {
+                    bytes += 24;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    static final class Key {
+        private final String dataSourceName;
+        private final String sqlQuery;
+        private final Object[] params;
+        private final int hash;
+
+        Key(String dataSourceName, String sqlQuery, List<Object> params) {
+            this.dataSourceName = dataSourceName;
+            this.sqlQuery = sqlQuery;
+            this.params = params == null ? new Object[0] : params.toArray();
+            this.hash = (dataSourceName.hashCode() * 31 + sqlQuery.hashCode()) * 31 + Arrays.deepHashCode(this.params);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && dataSourceName.equals(other.dataSourceName)
+                    && sqlQuery.equals(other.sqlQuery) && Arrays.deepEquals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final DBResult result;
+        private final long expiresAt;
+        private final long bytes;
+        private final Set<String> tags;
+
+        Entry(DBResult result, long expiresAt, long bytes, Set<String> tags) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+            this.bytes = bytes;
+            this.tags = Collections.unmodifiableSet(tags);
+        }
+    }
+}
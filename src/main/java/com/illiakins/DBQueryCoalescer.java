@@ -0,0 +1,150 @@
+package com.illiakins;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Single-flight execution of identical reads. While a query runs, every other thread issuing the same query
+ * (same data source, SQL and parameters) waits for it and receives the same read-only {@link DBResult} instead of
+ * taking another connection from the pool.
+ * <p>
+ * Installed with DB.setQueryCoalescer(), it covers DB.executeQueryRows() and DB.executeQuery() by data source name,
+ * and so the loads of {@link DBQueryCache} as well. executeQuery() still hands every caller its own HashMap copy of
+ * the shared result. Queries on an explicit connection are never coalesced, they may see uncommitted changes of
+ * their transaction. Locking reads and queries containing {@link #NO_COALESCE} always run on their own.
+ * <p>
+ * The key normalizer maps the SQL before it is compared, e.g. {@link #COLLAPSE_WHITESPACE}. Only a result which
+ * is still being read is shared, a query issued after it completed runs again.
+ */
+public class DBQueryCoalescer {
+    /**
+     * Put this comment into a query to opt out of coalescing.
+     */
+    public static final String NO_COALESCE = "/* no_coalesce */";
+
+    public static final UnaryOperator<String> COLLAPSE_WHITESPACE =
+            sqlQuery -> sqlQuery.trim().replaceAll("\\s+", " ");
+
+    private final Map<DBQueryCache.Key, CompletableFuture<DBResult>> inFlight = new ConcurrentHashMap<>();
+    private UnaryOperator<String> keyNormalizer = UnaryOperator.identity();
+    private Predicate<String> bypass = sqlQuery -> false;
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+
+    public DBQueryCoalescer keyNormalizer(UnaryOperator<String> keyNormalizer) {
+        this.keyNormalizer = keyNormalizer;
+        return this;
+    }
+
+    /**
+     * Queries matching the predicate are never coalesced.
+     */
+    public DBQueryCoalescer bypass(Predicate<String> bypass) {
+        this.bypass = bypass;
+        return this;
+    }
+
+    /**
+     * Runs the query or waits for the identical one already running.
+     */
+    public DBResult execute(String dataSourceName, String sqlQuery, List<Object> params) throws SQLException {
+        if (isBypassed(sqlQuery)) {
+            bypassed.increment();
+            return load(dataSourceName, sqlQuery, params);
+        }
+        DBQueryCache.Key key = new DBQueryCache.Key(dataSourceName, keyNormalizer.apply(sqlQuery), params);
+        CompletableFuture<DBResult> future = new CompletableFuture<>();
+        CompletableFuture<DBResult> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+        executions.increment();
+        try {
+            DBResult result = load(dataSourceName, sqlQuery, params);
+            inFlight.remove(key, future);
+            future.complete(result);
+            return result;
+        } catch (SQLException | RuntimeException | Error e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private boolean isBypassed(String sqlQuery) {
+        if (sqlQuery.contains(NO_COALESCE) || bypass.test(sqlQuery)) {
+            return true;
+        }
+        String upper = sqlQuery.toUpperCase(Locale.ROOT);
+        return upper.contains("FOR UPDATE") || upper.contains("LOCK IN SHARE MODE") || upper.contains("FOR SHARE");
+    }
+
+    private static DBResult load(String dataSourceName, String sqlQuery, List<Object> params) throws SQLException {
+        Connection connection = DB.getConnection(dataSourceName);
+        try {
+            return DB.executeQueryRows(connection, sqlQuery, params);
+        } finally {
+            DB.close(connection, null, null);
+        }
+    }
+
+    private static DBResult await(CompletableFuture<DBResult> running) throws SQLException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the coalesced query", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                throw new SQLException(sqlException.getMessage(), sqlException.getSQLState(),
+                        sqlException.getErrorCode(), sqlException);
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException("Coalesced query failed", cause);
+        }
+    }
+
+    /**
+     * Queries which actually ran against the database.
+     */
+    public long getExecutionCount() {
+        return executions.sum();
+    }
+
+    /**
+     * Queries which were served by an identical query already running, i.e. the executions saved.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getBypassCount() {
+        return bypassed.sum();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DBQueryCoalescer{inFlight=" + getInFlightCount() + ", executions=" + getExecutionCount()
+                + ", coalesced=" + getCoalescedCount() + ", bypassed=" + getBypassCount() + "}";
+    }
+}
@@ -0,0 +1,60 @@
+package com.illiakins;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Read-only query result where every row shares the same {@link DBRowSchema}.
+ * Rows are Maps, so the result can be passed to {@link DBResultParser} as it is.
+ */
+public class DBResult extends AbstractList<DBRow> implements RandomAccess {
+    private final DBRowSchema schema;
+    private final List<DBRow> rows;
+
+    public DBResult(DBRowSchema schema, List<DBRow> rows) {
+        this.schema = schema;
+        this.rows = rows;
+    }
+
+    public static DBResult of(ResultSet rs) throws SQLException {
+        DBRowSchema schema = DBRowSchema.of(rs.getMetaData());
+        int columns = schema.getColumnCount();
+        List<DBRow> rows = new ArrayList<>();
+        while (rs.next()) {
+            Object[] values = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = rs.getObject(i + 1);
+            }
+            rows.add(new DBRow(schema, values));
+        }
+        return new DBResult(schema, rows);
+    }
+
+    public DBRowSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public DBRow get(int index) {
+        return rows.get(index);
+    }
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    /**
+     * Copies the result into the legacy HashMap-per-row representation.
+     */
+    public List<HashMap<String, Object>> toHashMapList() {
+        List<HashMap<String, Object>> list = new ArrayList<>(rows.size());
+        rows.forEach(row -> list.add(new HashMap<>(row)));
+        return list;
+    }
+}
@@ -1,6 +1,9 @@
 package com.illiakins;
 
+import java.sql.Date;
 import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
@@ -8,113 +11,135 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 /**
  * Created by Illiak on 11/22/2016.
  */
 public class DBResultParser {
-    private HashMap<String, Object> resultRow;
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.S");
+
+    private Map<String, Object> resultRow;
 
     public DBResultParser(HashMap<String, Object> resultRow) {
         this.resultRow = resultRow;
     }
 
+    public DBResultParser(Map<String, Object> resultRow) {
+        this.resultRow = resultRow;
+    }
+
     public Integer getInt(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
+        Object value = getValue(key);
+        if (value == null || value instanceof Integer) return (Integer) value;
+        if (value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return Math.toIntExact(((Number) value).longValue());
         }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return Integer.valueOf(resultRow.get(key).toString());
+        return Integer.valueOf(value.toString());
     }
 
-    public Double getDouble(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
+    public Long getLong(String key) throws SQLException {
+        Object value = getValue(key);
+        if (value == null || value instanceof Long) return (Long) value;
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
         }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return Double.valueOf(resultRow.get(key).toString());
+        return Long.valueOf(value.toString());
+    }
+
+    public Double getDouble(String key) throws SQLException {
+        Object value = getValue(key);
+        if (value == null || value instanceof Double) return (Double) value;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        return Double.valueOf(value.toString());
     }
 
     public String getString(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
-        }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return String.valueOf(resultRow.get(key));
+        Object value = getValue(key);
+        if (value == null || value instanceof String) return (String) value;
+        return String.valueOf(value);
     }
 
     public Boolean getBool(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
+        Object value = getValue(key);
+        if (value == null || value instanceof Boolean) return (Boolean) value;
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue() == 1;
         }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return (Boolean.valueOf(resultRow.get(key).toString()) || resultRow.get(key).toString().equals("1"));
+        String stringValue = value.toString();
+        return (Boolean.valueOf(stringValue) || stringValue.equals("1"));
     }
 
     public LocalTime getLocalTime(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
-        }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return LocalTime.parse(resultRow.get(key).toString(), DateTimeFormatter.ofPattern("HH:mm:ss"));
+        return getLocalTime(key, TIME_FORMATTER);
     }
 
     public LocalTime getLocalTime(String key, DateTimeFormatter dateTimeFormatter) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
-        }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return LocalTime.parse(resultRow.get(key).toString(), dateTimeFormatter);
+        Object value = getValue(key);
+        if (value == null || value instanceof LocalTime) return (LocalTime) value;
+        if (value instanceof Time) return ((Time) value).toLocalTime();
+        return LocalTime.parse(value.toString(), dateTimeFormatter);
     }
 
     public LocalDate getLocalDate(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
-        }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return LocalDate.parse(resultRow.get(key).toString(), DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+        return getLocalDate(key, DATE_FORMATTER);
     }
 
     public LocalDate getLocalDate(String key, DateTimeFormatter dateTimeFormatter) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
-        }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return LocalDate.parse(resultRow.get(key).toString(), dateTimeFormatter);
+        Object value = getValue(key);
+        if (value == null || value instanceof LocalDate) return (LocalDate) value;
+        if (value instanceof Date) return ((Date) value).toLocalDate();
+        return LocalDate.parse(value.toString(), dateTimeFormatter);
     }
 
     public LocalDateTime getLocalDateTime(String key) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
-        }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return LocalDateTime.parse(resultRow.get(key).toString(), DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.S"));
+        return getLocalDateTime(key, DATE_TIME_FORMATTER);
     }
 
     public LocalDateTime getLocalDateTime(String key, DateTimeFormatter dateTimeFormatter) throws SQLException {
-        if (!resultRow.containsKey(key)) {
-            throw new SQLException("ResultSet does not contain column name '" + key +"'");
+        Object value = getValue(key);
+        if (value == null || value instanceof LocalDateTime) return (LocalDateTime) value;
+        if (value instanceof Timestamp) return ((Timestamp) value).toLocalDateTime();
+        return LocalDateTime.parse(value.toString(), dateTimeFormatter);
+    }
+
+    /**
+     * Looks the column up once. Returns NULL for NULL and empty string values.
+     */
+    private Object getValue(String key) throws SQLException {
+        Object value = resultRow.get(key);
+        if (value == null) {
+            if (!resultRow.containsKey(key)) {
+                throw new SQLException("ResultSet does not contain column name '" + key +"'");
+            }
+            return null;
         }
-        if (resultRow.get(key) == null || resultRow.get(key).equals("")) return null;
-        return LocalDateTime.parse(resultRow.get(key).toString(), dateTimeFormatter);
+        if (value instanceof String && ((String) value).isEmpty()) return null;
+        return value;
     }
 
-    public static Integer getCount(List<HashMap<String, Object>> dbResult, String columnName) throws SQLException {
-        List<DBResultParser> resultSet = getResultSet(dbResult);
-        if (resultSet.size() == 0 || resultSet.size() > 1 || !resultSet.get(0).getResultHashMap()
-                .containsKey(columnName)) {
+    public static Integer getCount(List<? extends Map<String, Object>> dbResult, String columnName) throws SQLException {
+        if (dbResult.size() != 1 || !dbResult.get(0).containsKey(columnName)) {
             return null;
         }
-        return resultSet.get(0).getInt(columnName);
+        return new DBResultParser(dbResult.get(0)).getInt(columnName);
     }
 
     public HashMap<String, Object> getResultHashMap() {
+        if (resultRow instanceof HashMap) {
+            return (HashMap<String, Object>) resultRow;
+        }
+        return new HashMap<>(resultRow);
+    }
+
+    public Map<String, Object> getResultMap() {
         return resultRow;
     }
 
-    public static List<DBResultParser> getResultSet(List<HashMap<String, Object>> dbResult) {
-        List<DBResultParser> resultList = new ArrayList<>();
+    public static List<DBResultParser> getResultSet(List<? extends Map<String, Object>> dbResult) {
+        List<DBResultParser> resultList = new ArrayList<>(dbResult.size());
         dbResult.forEach(resultDB -> resultList.add(new DBResultParser(resultDB)));
         return resultList;
     }
@@ -125,16 +150,22 @@ public class DBResultParser {
      * @return *Integer* of the first found column which contains "count" in the name OR the first available column
      * @throws SQLException if resultSet is empty or contains more than 1 record
      */
-    public static Integer getCount(List<HashMap<String, Object>> dbResult) throws SQLException {
-        List<DBResultParser> resultSet = getResultSet(dbResult);
-        if (resultSet.size() == 0 || resultSet.size() > 1) {
+    public static Integer getCount(List<? extends Map<String, Object>> dbResult) throws SQLException {
+        if (dbResult.size() != 1) {
             throw new SQLException("ResultSet is empty or contains more then 1 record");
         }
-        List<String> keys = resultSet.get(0).getResultHashMap().keySet().stream().map(String::toLowerCase)
-                .collect(Collectors.toList());
-        String key = keys.get(0);
-        key = keys.stream().filter(s -> s.contains("count")).findFirst().orElse(key);
-        return resultSet.get(0).getInt(key);
+        Map<String, Object> row = dbResult.get(0);
+        String key = null;
+        for (String columnName : row.keySet()) {
+            if (key == null) {
+                key = columnName;
+            }
+            if (columnName.toLowerCase().contains("count")) {
+                key = columnName;
+                break;
+            }
+        }
+        return new DBResultParser(row).getInt(key);
     }
 
     /**
@@ -142,10 +173,9 @@ public class DBResultParser {
      * @param dbResult the list of HashMaps with a result of requested data from a DataBase
      * @return first record from the resultSet if available, or NULL otherwise
      */
-    public static DBResultParser getFirstRecord(List<HashMap<String, Object>> dbResult) {
-        List<DBResultParser> resultSet = getResultSet(dbResult);
-        if (resultSet.size() > 0) {
-            return resultSet.get(0);
+    public static DBResultParser getFirstRecord(List<? extends Map<String, Object>> dbResult) {
+        if (dbResult.size() > 0) {
+            return new DBResultParser(dbResult.get(0));
         } else {
             return null;
         }
@@ -0,0 +1,273 @@
+package com.illiakins;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read/write splitting over named data sources.
+ * Writes, stored procedures and transactions go to the primary, queries go to one of the read replicas
+ * picked by least outstanding requests or weighted round-robin.
+ * <p>
+ * With read-your-writes enabled, queries of a session go to the primary for the given time after its last write.
+ * By default every thread has its own session; bind a shared {@link Session} with withSession() to carry the
+ * stickiness across threads, for example for all calls of one user request. The window starts when a write returns;
+ * for transactions it starts when the connection is released with releaseConnectionForTransaction() of the router.
+ */
+public class DBRouter {
+    public enum Balancing {
+        LEAST_OUTSTANDING, WEIGHTED_ROUND_ROBIN
+    }
+
+    private final String primary;
+    private final Balancing balancing;
+    /** replaced as a whole, so a read never sees the replicas and the weight table of different versions */
+    private volatile Replicas replicas = new Replicas(new ArrayList<>());
+    private final AtomicLong roundRobin = new AtomicLong();
+    private volatile long readYourWritesNanos;
+    private final ThreadLocal<Session> currentSession = ThreadLocal.withInitial(Session::new);
+    /** session which checked out the transaction connection, marked as written when the connection is released */
+    private final Map<Connection, Session> transactionSessions = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public DBRouter(String primaryDataSourceName, Balancing balancing) {
+        this.primary = primaryDataSourceName;
+        this.balancing = balancing;
+    }
+
+    public synchronized DBRouter addReplica(String dataSourceName, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Replica weight must be positive: " + weight);
+        }
+        List<Replica> added = new ArrayList<>(replicas.list);
+        added.add(new Replica(dataSourceName, weight));
+        replicas = new Replicas(added);
+        return this;
+    }
+
+    public DBRouter addReplica(String dataSourceName) {
+        return addReplica(dataSourceName, 1);
+    }
+
+    /**
+     * Sends reads of a session to the primary for the given time after the session wrote something, 0 to disable.
+     */
+    public DBRouter setReadYourWritesMillis(long millis) {
+        this.readYourWritesNanos = millis * 1_000_000;
+        return this;
+    }
+
+    /**
+     * Binds the session to the current thread until the returned scope is closed.
+     */
+    public SessionScope withSession(Session session) {
+        Session previous = currentSession.get();
+        currentSession.set(session);
+        return () -> currentSession.set(previous);
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Data source for the next read of the current session.
+     */
+    public String getReadDataSource() {
+        Replicas current = replicas;
+        if (current.list.isEmpty() || isSticky()) {
+            return primary;
+        }
+        if (balancing == Balancing.WEIGHTED_ROUND_ROBIN) {
+            String[] names = current.weightedNames;
+            return names[(int) (roundRobin.getAndIncrement() % names.length)];
+        }
+        return leastOutstanding(current.list).name;
+    }
+
+    private boolean isSticky() {
+        long window = readYourWritesNanos;
+        if (window <= 0) {
+            return false;
+        }
+        long lastWrite = currentSession.get().lastWriteNanos;
+        return lastWrite != 0 && System.nanoTime() - lastWrite < window;
+    }
+
+    private Replica leastOutstanding(List<Replica> candidates) {
+        Replica best = null;
+        int start = (int) (roundRobin.getAndIncrement() % candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            // start at a rotating position, so ties are spread over the replicas
+            Replica replica = candidates.get((start + i) % candidates.size());
+            if (best == null || replica.outstanding.get() * best.weight < best.outstanding.get() * replica.weight) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    private Replica findReplica(String name) {
+        for (Replica replica : replicas.list) {
+            if (replica.name.equals(name)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private <T> T read(DBAsync.Task<T> task, String dataSourceName) throws SQLException {
+        Replica replica = findReplica(dataSourceName);
+        if (replica != null) {
+            replica.outstanding.incrementAndGet();
+        }
+        try {
+            return task.call();
+        } finally {
+            if (replica != null) {
+                replica.outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    private void markWrite() {
+        markWrite(currentSession.get());
+    }
+
+    private void markWrite(Session session) {
+        if (readYourWritesNanos > 0 && session != null) {
+            session.lastWriteNanos = System.nanoTime();
+        }
+    }
+
+    public List<HashMap<String, Object>> executeQuery(String sqlQuery, List<Object> params) throws SQLException {
+        String dataSourceName = getReadDataSource();
+        return read(() -> DB.executeQuery(dataSourceName, sqlQuery, params), dataSourceName);
+    }
+
+    public List<HashMap<String, Object>> executeQuery(String sqlQuery, Object... parameters) throws SQLException {
+        return executeQuery(sqlQuery, DB.varargsToList(parameters));
+    }
+
+    public DBResult executeQueryRows(String sqlQuery, List<Object> params) throws SQLException {
+        String dataSourceName = getReadDataSource();
+        return read(() -> DB.executeQueryRows(dataSourceName, sqlQuery, params), dataSourceName);
+    }
+
+    public <T> List<T> query(String sqlQuery, List<Object> params, Class<T> type) throws SQLException {
+        String dataSourceName = getReadDataSource();
+        return read(() -> DB.query(dataSourceName, sqlQuery, params, type), dataSourceName);
+    }
+
+    public int executeUpdate(String sqlQuery, List<Object> params) throws SQLException {
+        try {
+            return DB.executeUpdate(primary, sqlQuery, params);
+        } finally {
+            markWrite();
+        }
+    }
+
+    public int executeUpdate(String sqlQuery, Object... parameters) throws SQLException {
+        return executeUpdate(sqlQuery, DB.varargsToList(parameters));
+    }
+
+    public HashMap<String, Integer> executeUpdateBatch(String sqlQuery, String subQuery, List<List<Object>> paramList)
+            throws SQLException {
+        try {
+            return DB.executeUpdateBatch(sqlQuery, subQuery, paramList, primary);
+        } finally {
+            markWrite();
+        }
+    }
+
+    public HashMap<String, Integer> executeUpdateBatch(String sqlQuery, List<List<Object>> paramList)
+            throws SQLException {
+        return executeUpdateBatch(sqlQuery, "", paramList);
+    }
+
+    public void execStoredProcedure(String procName, List<Object> params) throws SQLException {
+        try {
+            DB.execStoredProcedure(primary, procName, params);
+        } finally {
+            markWrite();
+        }
+    }
+
+    /**
+     * Transaction connection of the primary, release it with releaseConnectionForTransaction() of this router
+     * so the session of the caller reads its writes once they are committed.
+     */
+    public Connection getConnectionForTransaction() throws SQLException {
+        Connection connection = DB.getConnectionForTransaction(primary);
+        if (connection != null) {
+            transactionSessions.put(connection, currentSession.get());
+        }
+        return connection;
+    }
+
+    public boolean releaseConnectionForTransaction(Connection connection) throws SQLException {
+        return releaseConnectionForTransaction(connection, true);
+    }
+
+    public boolean releaseConnectionForTransaction(Connection connection, Boolean makeCommit) throws SQLException {
+        Session session = transactionSessions.remove(connection);
+        try {
+            return DB.releaseConnectionForTransaction(connection, makeCommit);
+        } finally {
+            if (makeCommit) {
+                markWrite(session);
+            }
+        }
+    }
+
+    public int getOutstanding(String replicaName) {
+        Replica replica = findReplica(replicaName);
+        return replica == null ? 0 : replica.outstanding.get();
+    }
+
+    /**
+     * Read-your-writes state shared by the calls which are bound to it.
+     */
+    public static class Session {
+        private volatile long lastWriteNanos;
+    }
+
+    @FunctionalInterface
+    public interface SessionScope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Replicas {
+        private final List<Replica> list;
+        private final String[] weightedNames;
+
+        Replicas(List<Replica> list) {
+            this.list = Collections.unmodifiableList(list);
+            List<String> names = new ArrayList<>();
+            for (Replica replica : list) {
+                for (int i = 0; i < replica.weight; i++) {
+                    names.add(replica.name);
+                }
+            }
+            this.weightedNames = names.toArray(new String[0]);
+        }
+    }
+
+    private static final class Replica {
+        private final String name;
+        private final int weight;
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Replica(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+}
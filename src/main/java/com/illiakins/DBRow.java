@@ -0,0 +1,78 @@
+package com.illiakins;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only Map view over a single result row. Values are kept in an array, the column labels are shared with
+ * every other row of the same result through {@link DBRowSchema}.
+ */
+public class DBRow extends AbstractMap<String, Object> {
+    private final DBRowSchema schema;
+    private final Object[] values;
+
+    public DBRow(DBRowSchema schema, Object[] values) {
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public DBRowSchema getSchema() {
+        return schema;
+    }
+
+    public Object getValue(int index) {
+        return values[index];
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = schema.indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return schema.getKeyIndexes().length;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                final int[] keyIndexes = schema.getKeyIndexes();
+                return new Iterator<Entry<String, Object>>() {
+                    private int position = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < keyIndexes.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int index = keyIndexes[position++];
+                        return new SimpleImmutableEntry<>(schema.getColumnLabel(index), values[index]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return DBRow.this.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,12 @@
+package com.illiakins;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Callback receiving rows of a streamed query one at a time.
+ */
+@FunctionalInterface
+public interface DBRowConsumer {
+    void accept(Map<String, Object> row) throws SQLException;
+}
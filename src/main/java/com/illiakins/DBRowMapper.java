@@ -0,0 +1,12 @@
+package com.illiakins;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a ResultSet to an object. Implementations must not move the cursor.
+ */
+@FunctionalInterface
+public interface DBRowMapper<T> {
+    T mapRow(ResultSet rs) throws SQLException;
+}
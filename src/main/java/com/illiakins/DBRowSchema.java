@@ -0,0 +1,65 @@
+package com.illiakins;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Column labels of a query result, resolved once per query and shared by all of its rows.
+ */
+public class DBRowSchema {
+    private final String[] columnLabels;
+    private final Map<String, Integer> columnIndexes;
+    private final int[] keyIndexes;
+
+    public DBRowSchema(String... columnLabels) {
+        this.columnLabels = columnLabels.clone();
+        columnIndexes = new HashMap<>(columnLabels.length * 4 / 3 + 1);
+        for (int i = 0; i < columnLabels.length; i++) {
+            // the last column with a duplicated label wins, the same way HashMap.put() behaves
+            columnIndexes.put(columnLabels[i], i);
+        }
+        keyIndexes = new int[columnIndexes.size()];
+        int k = 0;
+        for (int i = 0; i < columnLabels.length; i++) {
+            if (columnIndexes.get(columnLabels[i]) == i) {
+                keyIndexes[k++] = i;
+            }
+        }
+    }
+
+    public static DBRowSchema of(ResultSetMetaData md) throws SQLException {
+        String[] labels = new String[md.getColumnCount()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = md.getColumnLabel(i + 1);
+        }
+        return new DBRowSchema(labels);
+    }
+
+    public int getColumnCount() {
+        return columnLabels.length;
+    }
+
+    public String getColumnLabel(int index) {
+        return columnLabels[index];
+    }
+
+    /**
+     * Returns the zero-based index of the column or -1 if there is no such label.
+     */
+    public int indexOf(Object columnLabel) {
+        Integer index = columnIndexes.get(columnLabel);
+        return index == null ? -1 : index;
+    }
+
+    int[] getKeyIndexes() {
+        return keyIndexes;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(columnLabels);
+    }
+}
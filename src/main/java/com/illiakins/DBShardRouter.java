@@ -0,0 +1,535 @@
+package com.illiakins;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Routes queries of a horizontally sharded schema to the data source of their shard, one named data source per
+ * shard. The {@link ShardFunction} maps a shard key to the data source name, see hash(), range() and lookup().
+ * <pre>
+ * DBShardRouter router = new DBShardRouter(DBShardRouter.hash("shard0", "shard1", "shard2"))
+ *         .perShardTimeoutMillis(2_000);
+ * router.executeQuery(userId, "SELECT * FROM orders WHERE user_id = ?", userId);
+ * DBResult top = router.scatter("SELECT user_id, SUM(total) total FROM orders GROUP BY user_id", params)
+ *         .groupBy("user_id").aggregate("total", DBShardRouter.Aggregate.SUM)
+ *         .orderBy("total", true).limit(10).execute();
+ * </pre>
+ * scatter() runs the query on every shard in parallel through {@link DB#async()} and merges the results: rows with
+ * the same groupBy() values are combined by their aggregates (every row is combined into one when there is no
+ * groupBy), then the rows are sorted by orderBy() and cut to limit(). AVG can not be combined, select SUM and COUNT
+ * and divide. Push ORDER BY and LIMIT into the shard query as well, so every shard returns at most limit rows.
+ * <p>
+ * Every shard query gets the per-shard timeout as its JDBC query timeout, and the merge stops waiting for a shard
+ * once it elapsed. A failed or timed out shard fails the whole query unless allowPartialResults() is set.
+ */
+public class DBShardRouter {
+    public enum Aggregate {
+        SUM, COUNT, MIN, MAX
+    }
+
+    /**
+     * Maps a shard key to the name of the data source of its shard.
+     */
+    @FunctionalInterface
+    public interface ShardFunction {
+        String shardFor(Object shardKey) throws SQLException;
+    }
+
+    private final ShardFunction shardFunction;
+    private final List<String> shards;
+    private long perShardTimeoutMillis;
+
+    /**
+     * @param shardFunction maps shard keys to data source names
+     * @param shards every data source scatter() queries, by default the shards of hash() and range()
+     */
+    public DBShardRouter(ShardFunction shardFunction, String... shards) {
+        this.shardFunction = shardFunction;
+        if (shards.length == 0 && shardFunction instanceof Shards) {
+            this.shards = ((Shards) shardFunction).names();
+        } else {
+            this.shards = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(shards)));
+        }
+        if (this.shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+    }
+
+    /**
+     * Timeout of every shard query, 0 (the default) for none.
+     */
+    public DBShardRouter perShardTimeoutMillis(long perShardTimeoutMillis) {
+        this.perShardTimeoutMillis = perShardTimeoutMillis;
+        return this;
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public String getDataSource(Object shardKey) throws SQLException {
+        String dataSourceName = shardFunction.shardFor(shardKey);
+        if (dataSourceName == null) {
+            throw new SQLException("No shard for the key " + shardKey);
+        }
+        return dataSourceName;
+    }
+
+    public List<HashMap<String, Object>> executeQuery(Object shardKey, String sqlQuery, List<Object> params)
+            throws SQLException {
+        return DB.executeQuery(getDataSource(shardKey), sqlQuery, params);
+    }
+
+    public List<HashMap<String, Object>> executeQuery(Object shardKey, String sqlQuery, Object... parameters)
+            throws SQLException {
+        return executeQuery(shardKey, sqlQuery, DB.varargsToList(parameters));
+    }
+
+    public DBResult executeQueryRows(Object shardKey, String sqlQuery, List<Object> params) throws SQLException {
+        return DB.executeQueryRows(getDataSource(shardKey), sqlQuery, params);
+    }
+
+    public int executeUpdate(Object shardKey, String sqlQuery, List<Object> params) throws SQLException {
+        return DB.executeUpdate(getDataSource(shardKey), sqlQuery, params);
+    }
+
+    public int executeUpdate(Object shardKey, String sqlQuery, Object... parameters) throws SQLException {
+        return executeUpdate(shardKey, sqlQuery, DB.varargsToList(parameters));
+    }
+
+    /**
+     * Connection of the shard of the key, release it with DB.releaseConnectionForTransaction().
+     */
+    public Connection getConnectionForTransaction(Object shardKey) throws SQLException {
+        return DB.getConnectionForTransaction(getDataSource(shardKey));
+    }
+
+    public ScatterQuery scatter(String sqlQuery, List<Object> params) {
+        return new ScatterQuery(sqlQuery, params);
+    }
+
+    public ScatterQuery scatter(String sqlQuery, Object... parameters) {
+        return scatter(sqlQuery, DB.varargsToList(parameters));
+    }
+
+    /**
+     * Hashes the key onto the shards. Integral numbers hash by value, whatever their Java type.
+     */
+    public static ShardFunction hash(String... dataSourceNames) {
+        if (dataSourceNames.length == 0) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        String[] names = dataSourceNames.clone();
+        return new Shards() {
+            @Override
+            public String shardFor(Object shardKey) {
+                Object key = normalize(shardKey);
+                long hash = key instanceof Long ? (Long) key : key == null ? 0 : key.hashCode();
+                // murmur3 finalizer, spreads sequential ids evenly
+                hash ^= hash >>> 33;
+                hash *= 0xff51afd7ed558ccdL;
+                hash ^= hash >>> 33;
+                hash *= 0xc4ceb9fe1a85ec53L;
+                hash ^= hash >>> 33;
+                return names[(int) Math.floorMod(hash, (long) names.length)];
+            }
+
+            @Override
+            public List<String> names() {
+                return Collections.unmodifiableList(Arrays.asList(names));
+            }
+        };
+    }
+
+    /**
+     * Ranges of keys, keys below the first lower bound go to the first shard:
+     * <pre>
+     * DBShardRouter.range("shard0").from(1_000_000, "shard1").from(2_000_000, "shard2")
+     * </pre>
+     */
+    public static RangeShards range(String firstDataSourceName) {
+        return new RangeShards(firstDataSourceName);
+    }
+
+    /**
+     * Looks the key up in a directory table, keys missing from it have no shard.
+     */
+    public static ShardFunction lookup(Map<?, String> directory) {
+        Map<Object, String> normalized = new LinkedHashMap<>();
+        directory.forEach((key, name) -> normalized.put(normalize(key), name));
+        return new Shards() {
+            @Override
+            public String shardFor(Object shardKey) {
+                return normalized.get(normalize(shardKey));
+            }
+
+            @Override
+            public List<String> names() {
+                return Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(normalized.values())));
+            }
+        };
+    }
+
+    private interface Shards extends ShardFunction {
+        @Override
+        String shardFor(Object shardKey);
+
+        List<String> names();
+    }
+
+    public static final class RangeShards implements Shards {
+        private final String first;
+        private final TreeMap<Comparable<Object>, String> lowerBounds = new TreeMap<>();
+
+        private RangeShards(String first) {
+            this.first = first;
+        }
+
+        /**
+         * Keys from the lower bound (inclusive) up to the next one go to the data source.
+         */
+        @SuppressWarnings("unchecked")
+        public RangeShards from(Object lowerBound, String dataSourceName) {
+            lowerBounds.put((Comparable<Object>) normalize(lowerBound), dataSourceName);
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public String shardFor(Object shardKey) {
+            Map.Entry<Comparable<Object>, String> entry =
+                    lowerBounds.floorEntry((Comparable<Object>) normalize(shardKey));
+            return entry == null ? first : entry.getValue();
+        }
+
+        @Override
+        public List<String> names() {
+            List<String> names = new ArrayList<>();
+            names.add(first);
+            for (String name : lowerBounds.values()) {
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+            return Collections.unmodifiableList(names);
+        }
+    }
+
+    /**
+     * One query on every shard, merged into one result.
+     */
+    public final class ScatterQuery {
+        private final String sqlQuery;
+        private final List<Object> params;
+        private final List<String> groupBy = new ArrayList<>();
+        private final Map<String, Aggregate> aggregates = new LinkedHashMap<>();
+        private final List<String> orderBy = new ArrayList<>();
+        private final List<Boolean> descending = new ArrayList<>();
+        private int limit = -1;
+        private boolean allowPartialResults;
+
+        private ScatterQuery(String sqlQuery, List<Object> params) {
+            this.sqlQuery = sqlQuery;
+            this.params = params;
+        }
+
+        public ScatterQuery groupBy(String... columns) {
+            groupBy.addAll(Arrays.asList(columns));
+            return this;
+        }
+
+        public ScatterQuery aggregate(String column, Aggregate aggregate) {
+            aggregates.put(column, aggregate);
+            return this;
+        }
+
+        public ScatterQuery orderBy(String column, boolean desc) {
+            orderBy.add(column);
+            descending.add(desc);
+            return this;
+        }
+
+        public ScatterQuery orderBy(String column) {
+            return orderBy(column, false);
+        }
+
+        public ScatterQuery limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Merges the shards which answered instead of failing when a shard fails or times out.
+         */
+        public ScatterQuery allowPartialResults(boolean allowPartialResults) {
+            this.allowPartialResults = allowPartialResults;
+            return this;
+        }
+
+        public ScatterResult execute() throws SQLException {
+            long timeoutMillis = perShardTimeoutMillis;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            Map<String, CompletableFuture<DBResult>> futures = new LinkedHashMap<>();
+            for (String shard : shards) {
+                futures.put(shard, DB.async().submit(shard,
+                        () -> queryShard(shard, sqlQuery, params, timeoutMillis, deadline)));
+            }
+            List<DBResult> results = new ArrayList<>();
+            Map<String, Throwable> failures = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<DBResult>> entry : futures.entrySet()) {
+                try {
+                    results.add(timeoutMillis > 0
+                            ? entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                            : entry.getValue().get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for the shards", e);
+                } catch (TimeoutException e) {
+                    failures.put(entry.getKey(), new SQLException("Timed out after " + timeoutMillis + " ms"));
+                } catch (ExecutionException e) {
+                    failures.put(entry.getKey(), e.getCause());
+                }
+            }
+            if (!failures.isEmpty() && !allowPartialResults) {
+                Map.Entry<String, Throwable> failure = failures.entrySet().iterator().next();
+                SQLException exception = new SQLException("Shard `" + failure.getKey() + "` failed: "
+                        + failure.getValue().getMessage(), failure.getValue());
+                failures.values().stream().skip(1).forEach(exception::addSuppressed);
+                throw exception;
+            }
+            return merge(results, failures);
+        }
+
+        private ScatterResult merge(List<DBResult> results, Map<String, Throwable> failures) throws SQLException {
+            DBRowSchema schema = results.isEmpty() ? new DBRowSchema() : results.get(0).getSchema();
+            List<DBRow> rows = new ArrayList<>();
+            for (DBResult result : results) {
+                rows.addAll(result);
+            }
+            if (!aggregates.isEmpty()) {
+                rows = combine(schema, rows);
+            }
+            if (!orderBy.isEmpty()) {
+                int[] columns = indexes(schema, orderBy);
+                Comparator<DBRow> comparator = null;
+                for (int i = 0; i < columns.length; i++) {
+                    int column = columns[i];
+                    Comparator<DBRow> byColumn = (a, b) -> compareValues(a.getValue(column), b.getValue(column));
+                    if (descending.get(i)) {
+                        byColumn = byColumn.reversed();
+                    }
+                    comparator = comparator == null ? byColumn : comparator.thenComparing(byColumn);
+                }
+                // every shard usually returns its rows sorted already, TimSort merges such runs in linear time
+                rows.sort(comparator);
+            }
+            if (limit >= 0 && rows.size() > limit) {
+                rows = new ArrayList<>(rows.subList(0, limit));
+            }
+            return new ScatterResult(schema, rows, failures);
+        }
+
+        private List<DBRow> combine(DBRowSchema schema, List<DBRow> rows) throws SQLException {
+            int[] groupColumns = indexes(schema, groupBy);
+            int[] aggregateColumns = indexes(schema, new ArrayList<>(aggregates.keySet()));
+            Aggregate[] functions = aggregates.values().toArray(new Aggregate[0]);
+            Map<List<Object>, Object[]> groups = new LinkedHashMap<>();
+            for (DBRow row : rows) {
+                List<Object> groupKey = new ArrayList<>(groupColumns.length);
+                for (int column : groupColumns) {
+                    groupKey.add(normalize(row.getValue(column)));
+                }
+                Object[] combined = groups.get(groupKey);
+                if (combined == null) {
+                    combined = new Object[schema.getColumnCount()];
+                    for (int i = 0; i < combined.length; i++) {
+                        combined[i] = row.getValue(i);
+                    }
+                    groups.put(groupKey, combined);
+                    continue;
+                }
+                for (int i = 0; i < aggregateColumns.length; i++) {
+                    int column = aggregateColumns[i];
+                    combined[column] = combineValues(functions[i], combined[column], row.getValue(column));
+                }
+            }
+            List<DBRow> merged = new ArrayList<>(groups.size());
+            for (Object[] values : groups.values()) {
+                merged.add(new DBRow(schema, values));
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Merged result of a scatter query, with the shards which failed when partial results are allowed.
+     */
+    public static final class ScatterResult extends DBResult {
+        private final Map<String, Throwable> failures;
+
+        private ScatterResult(DBRowSchema schema, List<DBRow> rows, Map<String, Throwable> failures) {
+            super(schema, rows);
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        public boolean isPartial() {
+            return !failures.isEmpty();
+        }
+
+        /**
+         * Failure by data source name of every shard missing from the result.
+         */
+        public Map<String, Throwable> getFailures() {
+            return failures;
+        }
+    }
+
+    /**
+     * Runs the query with what is left until the deadline of the scatter as its timeout. A shard whose turn on the
+     * executor or whose connection checkout came after the deadline fails without running the query.
+     */
+    private static DBResult queryShard(String dataSourceName, String sqlQuery, List<Object> params,
+            long timeoutMillis, long deadline) throws SQLException {
+        if (timeoutMillis > 0 && deadline - System.nanoTime() <= 0) {
+            throw new SQLTimeoutException("Timed out after " + timeoutMillis + " ms before the query started");
+        }
+        Connection connection = DB.getConnection(dataSourceName);
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        DBMetrics.Timer timer = DBMetrics.Timer.start(DB.getMetrics(), connection, sqlQuery);
+        try {
+            statement = connection.prepareStatement(sqlQuery);
+            if (timeoutMillis > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SQLTimeoutException("Timed out after " + timeoutMillis + " ms before the query started");
+                }
+                // JDBC timeouts are whole seconds, round up so the query is not cut before the deadline
+                statement.setQueryTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999_999_999L)));
+            }
+            int parameterIndex = 1;
+            for (Object param : params) {
+                statement.setObject(parameterIndex++, param);
+            }
+            resultSet = statement.executeQuery();
+            timer.executed();
+            DBResult result = DBResult.of(resultSet);
+            timer.finish(result.size());
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            DB.close(connection, statement, resultSet);
+        }
+    }
+
+    private static int[] indexes(DBRowSchema schema, List<String> columns) throws SQLException {
+        int[] indexes = new int[columns.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = schema.indexOf(columns.get(i));
+            for (int j = 0; indexes[i] < 0 && j < schema.getColumnCount(); j++) {
+                // databases differ in the case of unquoted labels
+                if (schema.getColumnLabel(j).equalsIgnoreCase(columns.get(i))) {
+                    indexes[i] = j;
+                }
+            }
+            if (indexes[i] < 0 && schema.getColumnCount() > 0) {
+                throw new SQLException("ResultSet does not contain the column " + columns.get(i));
+            }
+        }
+        return indexes;
+    }
+
+    private static Object combineValues(Aggregate aggregate, Object a, Object b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        switch (aggregate) {
+            case SUM:
+            case COUNT:
+                return add((Number) a, (Number) b);
+            case MIN:
+                return compareValues(a, b) <= 0 ? a : b;
+            default:
+                return compareValues(a, b) >= 0 ? a : b;
+        }
+    }
+
+    private static Number add(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            try {
+                return Math.addExact(a.longValue(), b.longValue());
+            } catch (ArithmeticException e) {
+                return BigInteger.valueOf(a.longValue()).add(BigInteger.valueOf(b.longValue()));
+            }
+        }
+        if ((a instanceof Double || a instanceof Float) && (b instanceof Double || b instanceof Float)) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        return toBigDecimal(a).add(toBigDecimal(b));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a instanceof Number && b instanceof Number && a.getClass() != b.getClass()) {
+            return toBigDecimal((Number) a).compareTo(toBigDecimal((Number) b));
+        }
+        if (a instanceof Comparable) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static boolean isIntegral(Number value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        }
+        return isIntegral(value) ? BigDecimal.valueOf(value.longValue()) : BigDecimal.valueOf(value.doubleValue());
+    }
+
+    /**
+     * Integral numbers compare by value, whatever type the caller or the driver used.
+     */
+    private static Object normalize(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        if (key instanceof BigInteger && ((BigInteger) key).bitLength() < 64) {
+            return ((BigInteger) key).longValue();
+        }
+        return key;
+    }
+}
@@ -0,0 +1,373 @@
+package com.illiakins;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Query result which keeps at most maxRowsInMemory rows on the heap and spills the rest to a temporary file.
+ * <pre>
+ * try (DBSpillResult result = DB.executeQuerySpilling("default", sqlQuery, params, 10_000)) {
+ *     for (DBResultParser row : result.parsers()) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Spilled rows are written in a compact tagged binary format, then the file is memory-mapped in segments of up to
+ * 1 GB and every get() decodes its row from the mapping, so the heap holds only one offset per spilled row.
+ * Decoded rows are not cached, keep the row instead of calling get() again for the same index.
+ * <p>
+ * Strings, numbers, booleans, byte arrays, java.sql.Date, Time and Timestamp keep their type. Values of any other
+ * type are spilled as their toString(). The result must be closed to delete the file.
+ */
+public class DBSpillResult extends DBResult implements AutoCloseable {
+    private final Storage storage;
+
+    private DBSpillResult(DBRowSchema schema, Storage storage) {
+        super(schema, storage);
+        this.storage = storage;
+    }
+
+    /**
+     * Reads the remaining rows of the ResultSet, which is not closed.
+     */
+    public static DBSpillResult of(ResultSet rs, int maxRowsInMemory) throws SQLException {
+        DBRowSchema schema = DBRowSchema.of(rs.getMetaData());
+        Storage storage = new Storage(schema, maxRowsInMemory);
+        try {
+            int columns = schema.getColumnCount();
+            while (rs.next()) {
+                Object[] values = new Object[columns];
+                for (int i = 0; i < columns; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                storage.append(values);
+            }
+            storage.finish();
+        } catch (SQLException | RuntimeException e) {
+            storage.close();
+            throw e;
+        } catch (IOException e) {
+            storage.close();
+            throw new SQLException("Unable to spill the result to " + storage.file, e);
+        }
+        return new DBSpillResult(schema, storage);
+    }
+
+    /**
+     * Whether any row was spilled to disk.
+     */
+    public boolean isSpilled() {
+        return storage.file != null;
+    }
+
+    /**
+     * Number of rows held on the heap.
+     */
+    public int getRowsInMemory() {
+        return storage.inMemory.size();
+    }
+
+    /**
+     * Lazy DBResultParser view, rows are decoded when they are accessed.
+     */
+    public List<DBResultParser> parsers() {
+        return new ParserList(this);
+    }
+
+    /**
+     * Deletes the spill file. Spilled rows cannot be read afterwards.
+     */
+    @Override
+    public void close() {
+        storage.close();
+    }
+
+    private static final class ParserList extends AbstractList<DBResultParser> implements RandomAccess {
+        private final DBResult result;
+
+        ParserList(DBResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public DBResultParser get(int index) {
+            return new DBResultParser(result.get(index));
+        }
+
+        @Override
+        public int size() {
+            return result.size();
+        }
+    }
+
+    private static final class Storage extends AbstractList<DBRow> implements RandomAccess {
+        private static final long SEGMENT_SIZE = 1L << 30;
+
+        private static final byte NULL = 0;
+        private static final byte STRING = 1;
+        private static final byte INT = 2;
+        private static final byte LONG = 3;
+        private static final byte DOUBLE = 4;
+        private static final byte FLOAT = 5;
+        private static final byte SHORT = 6;
+        private static final byte BYTE = 7;
+        private static final byte BOOLEAN = 8;
+        private static final byte DECIMAL = 9;
+        private static final byte BIG_INTEGER = 10;
+        private static final byte BYTES = 11;
+        private static final byte DATE = 12;
+        private static final byte TIME = 13;
+        private static final byte TIMESTAMP = 14;
+
+        private final DBRowSchema schema;
+        private final int maxRowsInMemory;
+        private final List<DBRow> inMemory = new ArrayList<>();
+        private Path file;
+        private OutputStream out;
+        private ByteArrayOutputStream rowBytes;
+        private DataOutputStream rowOut;
+        /** segment index in the upper 32 bits, offset within the segment in the lower 32 bits */
+        private long[] offsets = new long[0];
+        private int spilledRows;
+        private long[] segmentStarts = new long[1];
+        private long position;
+        private int segmentCount;
+        private MappedByteBuffer[] segments;
+        private volatile boolean closed;
+
+        Storage(DBRowSchema schema, int maxRowsInMemory) {
+            this.schema = schema;
+            this.maxRowsInMemory = maxRowsInMemory;
+        }
+
+        void append(Object[] values) throws IOException {
+            if (inMemory.size() < maxRowsInMemory) {
+                inMemory.add(new DBRow(schema, values));
+                return;
+            }
+            if (file == null) {
+                file = Files.createTempFile("db-spill-", ".bin");
+                out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+                rowBytes = new ByteArrayOutputStream(256);
+                rowOut = new DataOutputStream(rowBytes);
+                segmentCount = 1;
+            }
+            rowBytes.reset();
+            for (Object value : values) {
+                write(rowOut, value);
+            }
+            int length = rowBytes.size();
+            if (length > SEGMENT_SIZE) {
+                throw new IOException("Row " + size() + " does not fit into a segment: " + length + " bytes");
+            }
+            if (position + length - segmentStarts[segmentCount - 1] > SEGMENT_SIZE) {
+                if (segmentCount == segmentStarts.length) {
+                    segmentStarts = Arrays.copyOf(segmentStarts, segmentCount * 2);
+                }
+                segmentStarts[segmentCount++] = position;
+            }
+            if (spilledRows == offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(1024, offsets.length * 2));
+            }
+            offsets[spilledRows++] = (long) (segmentCount - 1) << 32 | (position - segmentStarts[segmentCount - 1]);
+            rowBytes.writeTo(out);
+            position += length;
+        }
+
+        void finish() throws IOException {
+            if (file == null) {
+                return;
+            }
+            out.close();
+            out = null;
+            rowBytes = null;
+            rowOut = null;
+            offsets = Arrays.copyOf(offsets, spilledRows);
+            segments = new MappedByteBuffer[segmentCount];
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (int i = 0; i < segmentCount; i++) {
+                    long end = i + 1 < segmentCount ? segmentStarts[i + 1] : position;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStarts[i], end - segmentStarts[i]);
+                }
+            }
+        }
+
+        @Override
+        public DBRow get(int index) {
+            if (index < inMemory.size()) {
+                return inMemory.get(index);
+            }
+            int row = index - inMemory.size();
+            if (row >= spilledRows) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            MappedByteBuffer[] mapped = segments;
+            if (closed || mapped == null) {
+                throw new IllegalStateException("The spilled result is closed");
+            }
+            ByteBuffer buffer = mapped[(int) (offsets[row] >>> 32)].duplicate();
+            buffer.position((int) offsets[row]);
+            Object[] values = new Object[schema.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = read(buffer);
+            }
+            return new DBRow(schema, values);
+        }
+
+        @Override
+        public int size() {
+            return inMemory.size() + spilledRows;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            segments = null;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // the file is deleted anyway
+                }
+            }
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+
+        private static void write(DataOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+            } else if (value instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            } else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof BigDecimal) {
+                out.writeByte(DECIMAL);
+                out.writeInt(((BigDecimal) value).scale());
+                writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+            } else if (value instanceof BigInteger) {
+                out.writeByte(BIG_INTEGER);
+                writeBytes(out, ((BigInteger) value).toByteArray());
+            } else if (value instanceof byte[]) {
+                out.writeByte(BYTES);
+                writeBytes(out, (byte[]) value);
+            } else if (value instanceof Timestamp) {
+                out.writeByte(TIMESTAMP);
+                out.writeLong(((Timestamp) value).getTime());
+                out.writeInt(((Timestamp) value).getNanos());
+            } else if (value instanceof Date) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) value).getTime());
+            } else if (value instanceof Time) {
+                out.writeByte(TIME);
+                out.writeLong(((Time) value).getTime());
+            } else {
+                out.writeByte(STRING);
+                writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static Object read(ByteBuffer buffer) {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return new String(readBytes(buffer), StandardCharsets.UTF_8);
+                case INT:
+                    return buffer.getInt();
+                case LONG:
+                    return buffer.getLong();
+                case DOUBLE:
+                    return buffer.getDouble();
+                case FLOAT:
+                    return buffer.getFloat();
+                case SHORT:
+                    return buffer.getShort();
+                case BYTE:
+                    return buffer.get();
+                case BOOLEAN:
+                    return buffer.get() != 0;
+                case DECIMAL: {
+                    int scale = buffer.getInt();
+                    return new BigDecimal(new BigInteger(readBytes(buffer)), scale);
+                }
+                case BIG_INTEGER:
+                    return new BigInteger(readBytes(buffer));
+                case BYTES:
+                    return readBytes(buffer);
+                case DATE:
+                    return new Date(buffer.getLong());
+                case TIME:
+                    return new Time(buffer.getLong());
+                case TIMESTAMP: {
+                    Timestamp timestamp = new Timestamp(buffer.getLong());
+                    timestamp.setNanos(buffer.getInt());
+                    return timestamp;
+                }
+                default:
+                    throw new IllegalStateException("Corrupted spill file, unknown value tag " + tag);
+            }
+        }
+
+        private static byte[] readBytes(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.illiakins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of one transaction connection, keyed by their {@link DBPreparedQuery}.
+ * Lives from getConnectionForTransaction() until releaseConnectionForTransaction(), like the connection it is
+ * not meant to be shared between threads. The least recently used statement is closed beyond MAX_STATEMENTS.
+ */
+final class DBStatementCache {
+    private static final Logger LOG = LoggerFactory.getLogger(DBStatementCache.class);
+    static final int MAX_STATEMENTS = 256;
+
+    private final LinkedHashMap<DBPreparedQuery, PreparedStatement> statements =
+            new LinkedHashMap<DBPreparedQuery, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<DBPreparedQuery, PreparedStatement> eldest) {
+                    if (size() <= MAX_STATEMENTS) {
+                        return false;
+                    }
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+            };
+
+    PreparedStatement get(Connection connection, DBPreparedQuery query) throws SQLException {
+        PreparedStatement statement = statements.get(query);
+        if (statement == null || statement.isClosed()) {
+            statement = query.prepare(connection);
+            statements.put(query, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Drops a statement which failed, so the next call prepares it again.
+     */
+    void evict(DBPreparedQuery query) {
+        PreparedStatement statement = statements.remove(query);
+        if (statement != null) {
+            closeStatement(statement);
+        }
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    void close() {
+        for (PreparedStatement statement : statements.values()) {
+            closeStatement(statement);
+        }
+        statements.clear();
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOG.debug("Unable to close a cached statement", e);
+        }
+    }
+}
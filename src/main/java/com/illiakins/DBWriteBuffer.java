@@ -0,0 +1,356 @@
+package com.illiakins;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Write-behind buffer which group-commits single-row inserts and updates.
+ * <p>
+ * Writes are queued from any thread without blocking each other. A flusher thread takes up to maxBatchSize of them
+ * once that many are queued or the oldest one has waited maxDelayMillis, and runs every run of consecutive writes
+ * with the same SQL as one JDBC batch, all of them in a single transaction and in the order they were queued.
+ * Enable rewriteBatchedStatements on MySQL so a batch of inserts is sent as one multi-row statement. Every caller
+ * gets its own affected count or generated key; with rewritten batches the driver reports
+ * Statement.SUCCESS_NO_INFO (-2) instead of the count.
+ * <p>
+ * If the transaction fails it is rolled back and the writes are replayed one by one, so only the writes which
+ * fail on their own complete exceptionally.
+ */
+public class DBWriteBuffer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(DBWriteBuffer.class);
+
+    private final String dataSourceName;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final int maxPending;
+    private final Queue<Write> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread flusher;
+    /** enqueue() holds the read lock, so close() can not slip in between its closed check and queue.add() */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    /**
+     * @param maxBatchSize writes flushed together at most, a flush starts as soon as that many are queued
+     * @param maxDelayMillis longest time a write waits for more writes before it is flushed
+     * @param maxPending writes allowed to be queued, beyond that writes fail right away
+     */
+    public DBWriteBuffer(String dataSourceName, int maxBatchSize, long maxDelayMillis, int maxPending) {
+        if (maxBatchSize < 1 || maxPending < maxBatchSize) {
+            throw new IllegalArgumentException("maxBatchSize must be positive and not above maxPending");
+        }
+        this.dataSourceName = dataSourceName;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxPending = maxPending;
+        this.flusher = new Thread(this::run, "db-write-buffer-" + dataSourceName);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public DBWriteBuffer(String dataSourceName) {
+        this(dataSourceName, 500, 5, 100_000);
+    }
+
+    /**
+     * Queues an insert, update or delete.
+     * @return future of the number of affected rows
+     */
+    public CompletableFuture<Integer> executeUpdate(String sqlQuery, List<Object> params) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        enqueue(new Write(sqlQuery, params, false, future));
+        return future;
+    }
+
+    public CompletableFuture<Integer> executeUpdate(String sqlQuery, Object... parameters) {
+        return executeUpdate(sqlQuery, DB.varargsToList(parameters));
+    }
+
+    /**
+     * Queues an insert whose generated key is needed. Inserts and plain updates of the same SQL are batched apart.
+     * @return future of the generated key, 0 if the insert did not generate one
+     */
+    public CompletableFuture<Long> executeInsert(String sqlQuery, List<Object> params) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        enqueue(new Write(sqlQuery, params, true, future));
+        return future;
+    }
+
+    public CompletableFuture<Long> executeInsert(String sqlQuery, Object... parameters) {
+        return executeInsert(sqlQuery, DB.varargsToList(parameters));
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    private void enqueue(Write write) {
+        int size;
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                write.future.completeExceptionally(new SQLException("Write buffer of `" + dataSourceName
+                        + "` dataSourceName is closed"));
+                return;
+            }
+            size = queued.incrementAndGet();
+            if (size > maxPending) {
+                queued.decrementAndGet();
+                write.future.completeExceptionally(new SQLException("Too many pending writes for `" + dataSourceName
+                        + "` dataSourceName, " + maxPending + " are already queued"));
+                return;
+            }
+            queue.add(write);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        // the first write starts the delay deadline, a full batch is flushed right away
+        if (size == 1 || size == maxBatchSize) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Write oldest = queue.peek();
+            if (oldest == null) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+            long wait = oldest.queuedAt + maxDelayNanos - System.nanoTime();
+            if (queued.get() < maxBatchSize && wait > 0 && !closed) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            flush(drain());
+        }
+    }
+
+    private List<Write> drain() {
+        List<Write> writes = new ArrayList<>(maxBatchSize);
+        Write write;
+        while (writes.size() < maxBatchSize && (write = queue.poll()) != null) {
+            writes.add(write);
+        }
+        queued.addAndGet(-writes.size());
+        return writes;
+    }
+
+    private void flush(List<Write> writes) {
+        // only consecutive writes of the same shape are batched, an insert must not run after a later update
+        List<Shape> shapes = new ArrayList<>();
+        List<List<Write>> groups = new ArrayList<>();
+        for (Write write : writes) {
+            Shape shape = new Shape(write.sqlQuery, write.returnKey);
+            if (shapes.isEmpty() || !shapes.get(shapes.size() - 1).equals(shape)) {
+                shapes.add(shape);
+                groups.add(new ArrayList<>());
+            }
+            groups.get(groups.size() - 1).add(write);
+        }
+        try {
+            Connection connection = DB.getConnectionForTransaction(dataSourceName);
+            if (connection == null) {
+                throw new SQLException("Can not retrieve a connection for `" + dataSourceName + "` dataSourceName");
+            }
+            boolean committed = false;
+            try {
+                for (int i = 0; i < groups.size(); i++) {
+                    executeGroup(connection, shapes.get(i), groups.get(i));
+                }
+                committed = DB.releaseConnectionForTransaction(connection, true);
+            } finally {
+                if (!committed) {
+                    rollback(connection);
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOG.warn("Group commit of {} writes on `{}` failed, replaying them one by one", writes.size(),
+                    dataSourceName, e);
+            replay(writes);
+            return;
+        }
+        for (Write write : writes) {
+            write.complete();
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            if (!connection.isClosed()) {
+                DB.releaseConnectionForTransaction(connection, false);
+            }
+        } catch (SQLException e) {
+            LOG.debug("Rollback of a failed group commit failed", e);
+        }
+    }
+
+    private void executeGroup(Connection connection, Shape shape, List<Write> writes) throws SQLException {
+        DBMetrics.Timer timer = DBMetrics.Timer.start(DB.getMetrics(), connection, shape.sqlQuery);
+        PreparedStatement statement = null;
+        ResultSet keys = null;
+        try {
+            statement = shape.returnKey
+                    ? connection.prepareStatement(shape.sqlQuery, Statement.RETURN_GENERATED_KEYS)
+                    : connection.prepareStatement(shape.sqlQuery);
+            for (Write write : writes) {
+                bind(statement, write.params);
+                statement.addBatch();
+            }
+            int[] affected = statement.executeBatch();
+            timer.executed();
+            for (int i = 0; i < writes.size(); i++) {
+                writes.get(i).result = i < affected.length ? affected[i] : Statement.SUCCESS_NO_INFO;
+            }
+            if (shape.returnKey) {
+                keys = statement.getGeneratedKeys();
+                for (int i = 0; i < writes.size() && keys.next(); i++) {
+                    writes.get(i).result = keys.getLong(1);
+                }
+            }
+            timer.finish(writes.size());
+        } catch (SQLException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            DB.close(null, statement, keys);
+        }
+        DB.invalidateCache(connection, shape.sqlQuery);
+    }
+
+    private void replay(List<Write> writes) {
+        Connection connection;
+        try {
+            connection = DB.getConnection(dataSourceName);
+        } catch (SQLException e) {
+            writes.forEach(write -> write.future.completeExceptionally(e));
+            return;
+        }
+        try {
+            for (Write write : writes) {
+                try {
+                    executeOne(connection, write);
+                    write.complete();
+                } catch (SQLException | RuntimeException e) {
+                    write.future.completeExceptionally(e);
+                }
+            }
+        } finally {
+            try {
+                DB.close(connection, null, null);
+            } catch (SQLException e) {
+                LOG.debug("Unable to close the replay connection", e);
+            }
+        }
+    }
+
+    private static void executeOne(Connection connection, Write write) throws SQLException {
+        PreparedStatement statement = null;
+        ResultSet keys = null;
+        try {
+            statement = write.returnKey
+                    ? connection.prepareStatement(write.sqlQuery, Statement.RETURN_GENERATED_KEYS)
+                    : connection.prepareStatement(write.sqlQuery);
+            bind(statement, write.params);
+            write.result = statement.executeUpdate();
+            if (write.returnKey) {
+                keys = statement.getGeneratedKeys();
+                write.result = keys.next() ? keys.getLong(1) : 0;
+            }
+        } finally {
+            DB.close(null, statement, keys);
+        }
+        DB.invalidateCache(connection, write.sqlQuery);
+    }
+
+    private static void bind(PreparedStatement statement, List<Object> params) throws SQLException {
+        int parameterIndex = 1;
+        for (Object param : params) {
+            statement.setObject(parameterIndex++, param);
+        }
+    }
+
+    /**
+     * Stops accepting writes, flushes the queued ones and waits for the flusher to finish.
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        // nothing can be queued any more, the flusher drains the queue before it exits
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Shape {
+        private final String sqlQuery;
+        private final boolean returnKey;
+
+        Shape(String sqlQuery, boolean returnKey) {
+            this.sqlQuery = sqlQuery;
+            this.returnKey = returnKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && ((Shape) o).returnKey == returnKey && ((Shape) o).sqlQuery.equals(sqlQuery);
+        }
+
+        @Override
+        public int hashCode() {
+            return sqlQuery.hashCode() * 31 + (returnKey ? 1 : 0);
+        }
+    }
+
+    private static final class Write {
+        private final String sqlQuery;
+        private final List<Object> params;
+        private final boolean returnKey;
+        private final CompletableFuture<?> future;
+        private final long queuedAt = System.nanoTime();
+        private long result;
+
+        Write(String sqlQuery, List<Object> params, boolean returnKey, CompletableFuture<?> future) {
+            this.sqlQuery = sqlQuery;
+            this.params = params;
+            this.returnKey = returnKey;
+            this.future = future;
+        }
+
+        @SuppressWarnings("unchecked")
+        void complete() {
+            if (returnKey) {
+                ((CompletableFuture<Long>) future).complete(result);
+            } else {
+                ((CompletableFuture<Integer>) future).complete((int) result);
+            }
+        }
+    }
+}
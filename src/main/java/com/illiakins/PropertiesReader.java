@@ -1,11 +1,20 @@
 package com.illiakins;
 
 import com.netflix.config.ConfigurationManager;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
 import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.config.PropertyWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * Created by Illiak on 2/1/2017.
@@ -13,6 +22,12 @@ import java.io.IOException;
 public class PropertiesReader {
     private static final Logger LOG = LoggerFactory.getLogger(PropertiesReader.class);
     private static DynamicPropertyFactory dynamicPropertyFactory;
+    // every get*Property() call of the factory creates a new wrapper and registers it on the property,
+    // so the handles are created once per name and default value
+    private static final Map<String, DynamicStringProperty> stringProperties = new ConcurrentHashMap<>();
+    private static final Map<String, DynamicIntProperty> intProperties = new ConcurrentHashMap<>();
+    private static final Map<String, DynamicLongProperty> longProperties = new ConcurrentHashMap<>();
+    private static final Map<String, DynamicBooleanProperty> booleanProperties = new ConcurrentHashMap<>();
 
     static {
         String env = System.getProperty("archaius.deployment.environment");
@@ -32,19 +47,71 @@ public class PropertiesReader {
     }
 
     public static String getStringSetting(String settingName){
-        return dynamicPropertyFactory.getStringProperty(settingName, "").get();
+        return getStringProperty(settingName, "").get();
     }
 
     public static int getIntSetting(String settingName){
-        return dynamicPropertyFactory.getIntProperty(settingName, -1).get();
+        return getIntProperty(settingName, -1).get();
     }
 
     public static boolean getBooleanSetting(String settingName){
-        return dynamicPropertyFactory.getBooleanProperty(settingName, false).get();
+        return getBooleanProperty(settingName, false).get();
     }
 
     public static  long getLongSetting(String settingName){
-        return dynamicPropertyFactory.getLongProperty(settingName, 0).get();
+        return getLongProperty(settingName, 0).get();
+    }
+
+    /**
+     * Returns the cached property handle, get() reads the current value and addCallback() observes changes.
+     */
+    public static DynamicStringProperty getStringProperty(String settingName, String defaultValue){
+        DynamicStringProperty property = stringProperties.get(settingName);
+        if (property != null && Objects.equals(property.getDefaultValue(), defaultValue)) {
+            return property;
+        }
+        return cache(stringProperties, settingName, defaultValue,
+                () -> dynamicPropertyFactory.getStringProperty(settingName, defaultValue));
+    }
+
+    public static DynamicIntProperty getIntProperty(String settingName, int defaultValue){
+        DynamicIntProperty property = intProperties.get(settingName);
+        if (property != null && property.getDefaultValue() == defaultValue) {
+            return property;
+        }
+        return cache(intProperties, settingName, defaultValue,
+                () -> dynamicPropertyFactory.getIntProperty(settingName, defaultValue));
+    }
+
+    public static DynamicLongProperty getLongProperty(String settingName, long defaultValue){
+        DynamicLongProperty property = longProperties.get(settingName);
+        if (property != null && property.getDefaultValue() == defaultValue) {
+            return property;
+        }
+        return cache(longProperties, settingName, defaultValue,
+                () -> dynamicPropertyFactory.getLongProperty(settingName, defaultValue));
+    }
+
+    public static DynamicBooleanProperty getBooleanProperty(String settingName, boolean defaultValue){
+        DynamicBooleanProperty property = booleanProperties.get(settingName);
+        if (property != null && property.getDefaultValue() == defaultValue) {
+            return property;
+        }
+        return cache(booleanProperties, settingName, defaultValue,
+                () -> dynamicPropertyFactory.getBooleanProperty(settingName, defaultValue));
+    }
+
+    /**
+     * The first default requested for a name is cached under the bare name, so the usual lookup allocates nothing,
+     * handles with other defaults under name#default.
+     */
+    private static <P extends PropertyWrapper<?>> P cache(Map<String, P> properties, String settingName,
+            Object defaultValue, Supplier<P> factory) {
+        P property = properties.computeIfAbsent(settingName, key -> factory.get());
+        if (Objects.equals(property.getDefaultValue(), defaultValue)) {
+            return property;
+        }
+        return properties.computeIfAbsent(settingName + '#' + defaultValue, key -> factory.get());
     }
 
     public static String[] getArraySetting(String settingName){